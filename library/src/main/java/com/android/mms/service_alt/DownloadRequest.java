@@ -40,6 +40,12 @@ import com.google.android.mms.util_alt.SqliteWrapper;
 import com.klinker.android.send_message.BroadcastUtils;
 import com.klinker.android.send_message.Transaction;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Request to download an MMS
  */
@@ -57,13 +63,27 @@ public class DownloadRequest extends MmsRequest {
             Telephony.Mms.TRANSACTION_ID
     };
 
+    static final String[] MESSAGE_SIZE_PROJECTION = new String[]{
+            Telephony.Mms.MESSAGE_SIZE
+    };
+
     // The indexes of the columns which must be consistent with above PROJECTION.
     static final int COLUMN_CONTENT_LOCATION = 0;
 
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+    // Downloads that haven't finished yet, by location url, see cancelDownload(String)
+    private static final Map<String, DownloadRequest> sActiveDownloads =
+            new HashMap<String, DownloadRequest>();
+
     private final String mLocationUrl;
     private final String mTransactionId;
     private final PendingIntent mDownloadedIntent;
     private final Uri mContentUri;
+    // From the NotificationInd, or -1 if it didn't say
+    private final long mMessageSize;
+    // What earlier attempts received, kept so a retry can resume rather than start over
+    private File mDownloadFile;
 
     public DownloadRequest(RequestManager manager, int subId, String locationUrl, String transactionId,
                            Uri contentUri, PendingIntent downloadedIntent, String creator,
@@ -84,8 +104,66 @@ public class DownloadRequest extends MmsRequest {
 
         mDownloadedIntent = downloadedIntent;
         mContentUri = contentUri;
+        mMessageSize = getMessageSize(context, contentUri);
     }
 
+    /**
+     * Downloads of the same message started more than once share nothing, so the map only
+     * tracks the latest one to cancel.
+     */
+    @Override
+    public void executeAsync(Context context, MmsNetworkManager networkManager,
+            final Runnable onFinished) {
+        synchronized (sActiveDownloads) {
+            sActiveDownloads.put(mLocationUrl, this);
+        }
+        super.executeAsync(context, networkManager, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sActiveDownloads) {
+                    if (sActiveDownloads.get(mLocationUrl) == DownloadRequest.this) {
+                        sActiveDownloads.remove(mLocationUrl);
+                    }
+                }
+                if (onFinished != null) {
+                    onFinished.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel the download of a message, see {@link MmsRequest#cancel()}
+     *
+     * @param locationUrl the X-Mms-Content-Location of the message
+     * @return true if the message was being downloaded
+     */
+    public static boolean cancelDownload(String locationUrl) {
+        final DownloadRequest request;
+        synchronized (sActiveDownloads) {
+            request = sActiveDownloads.get(locationUrl);
+        }
+        if (request == null) {
+            return false;
+        }
+        request.cancel();
+        return true;
+    }
+
+    /**
+     * Smaller messages are downloaded first, so one large message doesn't hold up the ones
+     * queued behind it. Messages of unknown size go last.
+     */
+    @Override
+    protected long getQueuePriority() {
+        return mMessageSize >= 0 ? mMessageSize : Long.MAX_VALUE;
+    }
+
+    /**
+     * Downloads into a file in the cache rather than a growing in-memory buffer, so the only
+     * copy of the message held in memory is the exactly sized array handed to the parser. The
+     * file outlives a failed attempt, so the retry only asks the MMSC for the rest.
+     */
     @Override
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettings apn)
             throws MmsHttpException {
@@ -94,14 +172,56 @@ public class DownloadRequest extends MmsRequest {
             Log.e(TAG, "MMS network is not ready!");
             throw new MmsHttpException(0/*statusCode*/, "MMS network is not ready");
         }
-        return mmsHttpClient.execute(
-                mLocationUrl,
-                null/*pud*/,
-                MmsHttpClient.METHOD_GET,
-                apn.isProxySet(),
-                apn.getProxyAddress(),
-                apn.getProxyPort(),
-                mMmsConfig);
+        try {
+            if (mDownloadFile == null) {
+                mDownloadFile = createSpoolFile(context, "download");
+            }
+            mmsHttpClient.download(
+                    mLocationUrl,
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mDownloadFile);
+            final byte[] response = readFully(mDownloadFile);
+            deleteDownloadFile();
+            return response;
+        } catch (MmsHttpException e) {
+            if (e.getStatusCode() == HTTP_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // What we have doesn't match the message any more, start over next time
+                deleteDownloadFile();
+            }
+            throw e;
+        } catch (IOException e) {
+            Log.e(TAG, "DownloadRequest: can't use download file", e);
+            deleteDownloadFile();
+            throw new MmsHttpException(0/*statusCode*/, e);
+        }
+    }
+
+    @Override
+    public void processResult(Context context, int result, byte[] response, int httpStatusCode) {
+        // No more attempts will be made, drop anything a failed one left behind
+        deleteDownloadFile();
+        super.processResult(context, result, response, httpStatusCode);
+    }
+
+    private void deleteDownloadFile() {
+        if (mDownloadFile != null) {
+            mDownloadFile.delete();
+            mDownloadFile = null;
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
     }
 
     @Override
@@ -357,6 +477,26 @@ public class DownloadRequest extends MmsRequest {
         throw new MmsException("Cannot get X-Mms-Content-Location from: " + uri);
     }
 
+    private static long getMessageSize(Context context, Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        Cursor cursor = android.database.sqlite.SqliteWrapper.query(context, context.getContentResolver(),
+                uri, MESSAGE_SIZE_PROJECTION, null, null, null);
+
+        if (cursor != null) {
+            try {
+                if ((cursor.getCount() == 1) && cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return -1;
+    }
+
     private String getTransactionId(Context context, Uri uri)
             throws MmsException {
         Cursor cursor = android.database.sqlite.SqliteWrapper.query(context, context.getContentResolver(),
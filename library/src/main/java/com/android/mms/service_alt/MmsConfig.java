@@ -127,6 +127,16 @@ public class MmsConfig {
     public static final String CONFIG_EMAIL_GATEWAY_NUMBER = "emailGatewayNumber";
     // String to append to the NAI header, e.g. ":pcs"
     public static final String CONFIG_NAI_SUFFIX = "naiSuffix";
+    // How many times an MMS request is attempted in total, and how long to wait before the first
+    // retry (in ms), for each kind of failure. The wait doubles for every further retry.
+    public static final String CONFIG_RETRY_SERVER_ERROR_ATTEMPTS = "retryServerErrorAttempts";
+    public static final String CONFIG_RETRY_SERVER_ERROR_DELAY = "retryServerErrorDelay";
+    public static final String CONFIG_RETRY_TIMEOUT_ATTEMPTS = "retryTimeoutAttempts";
+    public static final String CONFIG_RETRY_TIMEOUT_DELAY = "retryTimeoutDelay";
+    public static final String CONFIG_RETRY_APN_FAILURE_ATTEMPTS = "retryApnFailureAttempts";
+    public static final String CONFIG_RETRY_APN_FAILURE_DELAY = "retryApnFailureDelay";
+    public static final String CONFIG_RETRY_NETWORK_ERROR_ATTEMPTS = "retryNetworkErrorAttempts";
+    public static final String CONFIG_RETRY_NETWORK_ERROR_DELAY = "retryNetworkErrorDelay";
 
     /*
      * Key types
@@ -180,6 +190,14 @@ public class MmsConfig {
         DEFAULTS.put(CONFIG_HTTP_PARAMS, "");
         DEFAULTS.put(CONFIG_EMAIL_GATEWAY_NUMBER, "");
         DEFAULTS.put(CONFIG_NAI_SUFFIX, "");
+        DEFAULTS.put(CONFIG_RETRY_SERVER_ERROR_ATTEMPTS, Integer.valueOf(3));
+        DEFAULTS.put(CONFIG_RETRY_SERVER_ERROR_DELAY, Integer.valueOf(2000));
+        DEFAULTS.put(CONFIG_RETRY_TIMEOUT_ATTEMPTS, Integer.valueOf(3));
+        DEFAULTS.put(CONFIG_RETRY_TIMEOUT_DELAY, Integer.valueOf(2000));
+        DEFAULTS.put(CONFIG_RETRY_APN_FAILURE_ATTEMPTS, Integer.valueOf(1));
+        DEFAULTS.put(CONFIG_RETRY_APN_FAILURE_DELAY, Integer.valueOf(2000));
+        DEFAULTS.put(CONFIG_RETRY_NETWORK_ERROR_ATTEMPTS, Integer.valueOf(3));
+        DEFAULTS.put(CONFIG_RETRY_NETWORK_ERROR_DELAY, Integer.valueOf(2000));
     }
 
     private final int mSubId;
@@ -225,6 +243,14 @@ public class MmsConfig {
         Log.v(TAG, "MmsConfig: all settings -- " + mKeyValues);
     }
 
+    /**
+     * Only the default values, for use without a context to load the carrier's from
+     */
+    MmsConfig() {
+        mSubId = -1;
+        mKeyValues.putAll(DEFAULTS);
+    }
+
     /**
      * Return the subscription ID associated with this MmsConfig
      *
@@ -455,6 +481,14 @@ public class MmsConfig {
             return getInt(CONFIG_MAX_IMAGE_WIDTH);
         }
 
+        /**
+         * @return true if the max image dimensions differ from the generic defaults, meaning
+         * the carrier actually asked for them
+         */
+        public boolean hasCarrierImageSizeLimit() {
+            return getMaxImageWidth() != MAX_IMAGE_WIDTH || getMaxImageHeight() != MAX_IMAGE_HEIGHT;
+        }
+
         public int getRecipientLimit() {
             final int limit = getInt(CONFIG_RECIPIENT_LIMIT);
             return limit < 0 ? Integer.MAX_VALUE : limit;
@@ -521,6 +555,38 @@ public class MmsConfig {
             return getString(CONFIG_NAI_SUFFIX);
         }
 
+        public int getRetryServerErrorAttempts() {
+            return getInt(CONFIG_RETRY_SERVER_ERROR_ATTEMPTS);
+        }
+
+        public int getRetryServerErrorDelay() {
+            return getInt(CONFIG_RETRY_SERVER_ERROR_DELAY);
+        }
+
+        public int getRetryTimeoutAttempts() {
+            return getInt(CONFIG_RETRY_TIMEOUT_ATTEMPTS);
+        }
+
+        public int getRetryTimeoutDelay() {
+            return getInt(CONFIG_RETRY_TIMEOUT_DELAY);
+        }
+
+        public int getRetryApnFailureAttempts() {
+            return getInt(CONFIG_RETRY_APN_FAILURE_ATTEMPTS);
+        }
+
+        public int getRetryApnFailureDelay() {
+            return getInt(CONFIG_RETRY_APN_FAILURE_DELAY);
+        }
+
+        public int getRetryNetworkErrorAttempts() {
+            return getInt(CONFIG_RETRY_NETWORK_ERROR_ATTEMPTS);
+        }
+
+        public int getRetryNetworkErrorDelay() {
+            return getInt(CONFIG_RETRY_NETWORK_ERROR_DELAY);
+        }
+
         public boolean isMmsReadReportsEnabled() {
             return getBoolean(CONFIG_ENABLE_MMS_READ_REPORTS);
         }
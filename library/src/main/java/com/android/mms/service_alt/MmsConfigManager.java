@@ -107,6 +107,16 @@ public class MmsConfigManager {
 //                });
     }
 
+    /**
+     * Same as {@link #init(Context)}, but does nothing once the configs have been loaded, so
+     * callers that need them on every send do not parse the xml again each time.
+     */
+    public synchronized void initIfNeeded(Context context) {
+        if (mContext == null) {
+            init(context.getApplicationContext());
+        }
+    }
+
     private void loadInBackground() {
         // TODO (ywen) - AsyncTask to avoid creating a new thread?
         new Thread() {
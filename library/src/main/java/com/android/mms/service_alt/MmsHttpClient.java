@@ -31,9 +31,11 @@ import com.squareup.okhttp.internal.Internal;
 import com.squareup.okhttp.internal.huc.HttpURLConnectionImpl;
 import com.squareup.okhttp.internal.huc.HttpsURLConnectionImpl;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -70,6 +72,9 @@ public class MmsHttpClient {
     private static final String HEADER_ACCEPT = "Accept";
     private static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
     private static final String HEADER_USER_AGENT = "User-Agent";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
 
     // The "Accept" header value
     private static final String HEADER_VALUE_ACCEPT =
@@ -79,22 +84,147 @@ public class MmsHttpClient {
             "application/vnd.wap.mms-message; charset=utf-8";
     private static final String HEADER_VALUE_CONTENT_TYPE_WITHOUT_CHARSET =
             "application/vnd.wap.mms-message";
+    // Ranges are counted in bytes of the entity as served, so it must not be compressed
+    private static final String HEADER_VALUE_ACCEPT_ENCODING_IDENTITY = "identity";
+
+    // "bytes first-last/length", where length may be "*"
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    // Size of the buffer the request body is copied through
+    private static final int REQUEST_BUFFER_SIZE = 16 * 1024;
+    // Size of the buffer the response body is copied through
+    private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+    // Lower bound for the response size limit, see getMaxResponseSize()
+    private static final long MIN_MAX_RESPONSE_SIZE = 5 * 1024 * 1024;
+
+    // Only used if no pool is handed to the constructor
+    private static final int FALLBACK_MAX_IDLE_CONNECTIONS = 3;
+    private static final long FALLBACK_KEEP_ALIVE_MILLIS = 60000;
+
+    /**
+     * Never answers an authentication challenge. One instance for all clients, since OkHttp only
+     * hands out a pooled connection to a request whose authenticator equals the one it was made
+     * for.
+     */
+    private static final com.squareup.okhttp.Authenticator NO_AUTHENTICATOR =
+            new com.squareup.okhttp.Authenticator() {
+                @Override
+                public Request authenticate(Proxy proxy, Response response) throws IOException {
+                    return null;
+                }
+
+                @Override
+                public Request authenticateProxy(Proxy proxy, Response response)
+                        throws IOException {
+                    return null;
+                }
+            };
 
     private final Context mContext;
     private final SocketFactory mSocketFactory;
-    private final MmsNetworkManager mHostResolver;
+    private final com.squareup.okhttp.internal.Network mHostResolver;
     private final ConnectionPool mConnectionPool;
 
+    /**
+     * Supplies the body of a POST. It is opened again for every attempt, so a retried send
+     * never needs the PDU in memory between attempts.
+     */
+    public interface PduSource {
+        /**
+         * @return The exact number of bytes {@link #open()} returns
+         */
+        long getLength();
+
+        /**
+         * @return A new stream over the whole PDU, closed by the caller
+         */
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * @return A source over a PDU held in memory
+     */
+    public static PduSource pduSourceOf(final byte[] pdu) {
+        return new PduSource() {
+            @Override
+            public long getLength() {
+                return pdu.length;
+            }
+
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(pdu);
+            }
+        };
+    }
+
+    /**
+     * @return A source over a PDU written to a file
+     */
+    public static PduSource pduSourceOf(final File pdu) {
+        return new PduSource() {
+            @Override
+            public long getLength() {
+                return pdu.length();
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(pdu);
+            }
+        };
+    }
+
+    /**
+     * Receives the response body once the status is known
+     */
+    private interface ResponseSink {
+        /**
+         * @param partial Whether the body continues a previous download rather than replacing it
+         */
+        OutputStream open(boolean partial) throws IOException;
+    }
+
+    /**
+     * Appends to or replaces a partially downloaded file
+     */
+    private static class FileResponseSink implements ResponseSink {
+        private final File mFile;
+        private OutputStream mOut;
+
+        FileResponseSink(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public OutputStream open(boolean partial) throws IOException {
+            mOut = new FileOutputStream(mFile, partial/*append*/);
+            return mOut;
+        }
+
+        void close() {
+            if (mOut != null) {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "HTTP: can't close download file", e);
+                }
+            }
+        }
+    }
+
     /**
      * Constructor
      *
      * @param context The Context object
      * @param socketFactory The socket factory for creating an OKHttp client
-     * @param hostResolver The host name resolver for creating an OKHttp client
+     * @param hostResolver The host name resolver for creating an OKHttp client, usually the
+     *                     {@link MmsNetworkManager} of the network the requests go over
      * @param connectionPool The connection pool for creating an OKHttp client
      */
-    public MmsHttpClient(Context context, SocketFactory socketFactory, MmsNetworkManager hostResolver,
-            ConnectionPool connectionPool) {
+    public MmsHttpClient(Context context, SocketFactory socketFactory,
+            com.squareup.okhttp.internal.Network hostResolver, ConnectionPool connectionPool) {
         mContext = context;
         mSocketFactory = socketFactory;
         mHostResolver = hostResolver;
@@ -118,9 +248,76 @@ public class MmsHttpClient {
     public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
             String proxyHost, int proxyPort, MmsConfig.Overridden mmsConfig)
             throws MmsHttpException {
+        final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        execute(urlString, pdu != null ? pduSourceOf(pdu) : null, method, isProxySet,
+                proxyHost, proxyPort, mmsConfig, byteOut);
+        final byte[] responseBody = byteOut.toByteArray();
+        Log.d(TAG, "HTTP: response size=" + responseBody.length);
+        return responseBody;
+    }
+
+    /**
+     * Execute an MMS HTTP request, either a POST (sending) or a GET (downloading), and stream
+     * the response body into a sink instead of holding it in memory
+     *
+     * @param urlString The request URL, for sending it is usually the MMSC, and for downloading
+     *                  it is the message URL
+     * @param pdu For POST (sending) only, the PDU to send, which is streamed to the MMSC
+     * @param method HTTP method, POST for sending and GET for downloading
+     * @param isProxySet Is there a proxy for the MMSC
+     * @param proxyHost The proxy host
+     * @param proxyPort The proxy port
+     * @param mmsConfig The MMS config to use
+     * @param sink Where the response body is written, it is not closed
+     * @return The number of bytes written to the sink
+     * @throws MmsHttpException For any failures, including a response over the size limit
+     */
+    public long execute(String urlString, PduSource pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, MmsConfig.Overridden mmsConfig,
+            final OutputStream sink) throws MmsHttpException {
+        return execute(urlString, pdu, method, isProxySet, proxyHost, proxyPort, mmsConfig,
+                0/*resumeFrom*/, new ResponseSink() {
+                    @Override
+                    public OutputStream open(boolean partial) {
+                        return sink;
+                    }
+                });
+    }
+
+    /**
+     * Download into a file, continuing from whatever an earlier, interrupted attempt left in it.
+     * The rest of the message is requested with a Range header; if the server answers with the
+     * whole message instead, the file is overwritten. The file holds the complete message when
+     * this returns.
+     *
+     * @param urlString The message URL
+     * @param isProxySet Is there a proxy for the MMSC
+     * @param proxyHost The proxy host
+     * @param proxyPort The proxy port
+     * @param mmsConfig The MMS config to use
+     * @param file The download file, which is kept as is by failures so they can be resumed
+     * @return The length of the message
+     * @throws MmsHttpException For any failures, a status code of 416 means the partial download
+     *                          can't be resumed and should be discarded
+     */
+    public long download(String urlString, boolean isProxySet, String proxyHost, int proxyPort,
+            MmsConfig.Overridden mmsConfig, File file) throws MmsHttpException {
+        final FileResponseSink sink = new FileResponseSink(file);
+        try {
+            return execute(urlString, null/*pdu*/, METHOD_GET, isProxySet, proxyHost, proxyPort,
+                    mmsConfig, file.length(), sink);
+        } finally {
+            sink.close();
+        }
+    }
+
+    private long execute(String urlString, PduSource pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, MmsConfig.Overridden mmsConfig, long resumeFrom,
+            ResponseSink sink) throws MmsHttpException {
+        final long pduLength = pdu != null ? pdu.getLength() : 0;
         Log.d(TAG, "HTTP: " + method + " " + redactUrlForNonVerbose(urlString)
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
-                + ", PDU size=" + (pdu != null ? pdu.length : 0));
+                + ", PDU size=" + pduLength);
         checkMethod(method);
         HttpURLConnection connection = null;
         try {
@@ -154,7 +351,7 @@ public class MmsHttpClient {
             addExtraHeaders(connection, mmsConfig);
             // Different stuff for GET and POST
             if (METHOD_POST.equals(method)) {
-                if (pdu == null || pdu.length < 1) {
+                if (pduLength < 1) {
                     Log.e(TAG, "HTTP: empty pdu");
                     throw new MmsHttpException(0/*statusCode*/, "Sending empty PDU");
                 }
@@ -170,14 +367,33 @@ public class MmsHttpClient {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties());
                 }
-                connection.setFixedLengthStreamingMode(pdu.length);
+                connection.setFixedLengthStreamingMode((int) pduLength);
                 // Sending request body
-                final OutputStream out =
-                        new BufferedOutputStream(connection.getOutputStream());
-                out.write(pdu);
-                out.flush();
-                out.close();
+                final OutputStream out = connection.getOutputStream();
+                final InputStream in = pdu.open();
+                try {
+                    final byte[] buf = new byte[REQUEST_BUFFER_SIZE];
+                    long sent = 0;
+                    int count;
+                    while ((count = in.read(buf)) > 0) {
+                        out.write(buf, 0, count);
+                        sent += count;
+                    }
+                    if (sent != pduLength) {
+                        throw new IOException("PDU was " + sent + " bytes, expected " + pduLength);
+                    }
+                    out.flush();
+                } finally {
+                    in.close();
+                    out.close();
+                }
             } else if (METHOD_GET.equals(method)) {
+                if (resumeFrom > 0) {
+                    Log.d(TAG, "HTTP: resuming from " + resumeFrom);
+                    connection.setRequestProperty(HEADER_RANGE, "bytes=" + resumeFrom + "-");
+                    connection.setRequestProperty(HEADER_ACCEPT_ENCODING,
+                            HEADER_VALUE_ACCEPT_ENCODING_IDENTITY);
+                }
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties());
                 }
@@ -193,18 +409,49 @@ public class MmsHttpClient {
             if (responseCode / 100 != 2) {
                 throw new MmsHttpException(responseCode, responseMessage);
             }
-            final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-            final byte[] buf = new byte[4096];
-            int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
+            // The length of the whole message, or -1 if the server didn't say
+            long expectedSize = connection.getContentLength();
+            long total = 0;
+            final boolean partial =
+                    resumeFrom > 0 && responseCode == HttpURLConnection.HTTP_PARTIAL;
+            if (partial) {
+                final long[] range =
+                        parseContentRange(connection.getHeaderField(HEADER_CONTENT_RANGE));
+                if (range == null || range[0] != resumeFrom) {
+                    throw new MmsHttpException(responseCode, "Unexpected Content-Range "
+                            + connection.getHeaderField(HEADER_CONTENT_RANGE));
+                }
+                expectedSize = range[1];
+                total = resumeFrom;
+            } else if (resumeFrom > 0) {
+                Log.d(TAG, "HTTP: range not supported, downloading from the start");
+            }
+            final long maxSize = getMaxResponseSize(mmsConfig);
+            if (expectedSize > maxSize) {
+                throw new MmsHttpException(0/*statusCode*/, "Response of "
+                        + expectedSize + " bytes is over the limit of " + maxSize);
             }
-            in.close();
-            final byte[] responseBody = byteOut.toByteArray();
-            Log.d(TAG, "HTTP: response size="
-                    + (responseBody != null ? responseBody.length : 0));
-            return responseBody;
+            final InputStream in = connection.getInputStream();
+            try {
+                final OutputStream out = sink.open(partial);
+                final byte[] buf = new byte[RESPONSE_BUFFER_SIZE];
+                int count = 0;
+                while ((count = in.read(buf)) > 0) {
+                    total += count;
+                    if (total > maxSize) {
+                        throw new MmsHttpException(0/*statusCode*/,
+                                "Response is over the limit of " + maxSize + " bytes");
+                    }
+                    out.write(buf, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            if (expectedSize >= 0 && total != expectedSize) {
+                throw new IOException("Response was " + total + " bytes, expected "
+                        + expectedSize);
+            }
+            return total;
         } catch (MalformedURLException e) {
             final String redactedUrl = redactUrlForNonVerbose(urlString);
             Log.e(TAG, "HTTP: invalid URL " + redactedUrl, e);
@@ -223,6 +470,29 @@ public class MmsHttpClient {
         }
     }
 
+    /**
+     * Parse a Content-Range header
+     *
+     * @return The first byte position and the complete length, which is -1 if unknown, or null
+     *         if the header is missing or malformed
+     */
+    private static long[] parseContentRange(String contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+        final Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            final long first = Long.parseLong(matcher.group(1));
+            final String length = matcher.group(3);
+            return new long[] { first, "*".equals(length) ? -1 : Long.parseLong(length) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * Open an HTTP connection
      *
@@ -236,41 +506,17 @@ public class MmsHttpClient {
      * @return The opened HttpURLConnection
      * @throws MalformedURLException If URL is malformed
      */
-    private HttpURLConnection openConnection(URL url, final Proxy proxy) throws MalformedURLException {
+    private HttpURLConnection openConnection(URL url, Proxy proxy) throws MalformedURLException {
         final String protocol = url.getProtocol();
         OkHttpClient okHttpClient;
         if (protocol.equals("http")) {
             okHttpClient = new OkHttpClient();
             okHttpClient.setFollowRedirects(false);
             okHttpClient.setProtocols(Arrays.asList(Protocol.HTTP_1_1));
-            okHttpClient.setProxySelector(new ProxySelector() {
-                @Override
-                public List<Proxy> select(URI uri) {
-                    if (proxy != null) {
-                        return Arrays.asList(proxy);
-                    } else {
-                        return new ArrayList<Proxy>();
-                    }
-                }
-
-                @Override
-                public void connectFailed(URI uri, SocketAddress address, IOException failure) {
-
-                }
-            });
-            okHttpClient.setAuthenticator(new com.squareup.okhttp.Authenticator() {
-                @Override
-                public Request authenticate(Proxy proxy, Response response) throws IOException {
-                    return null;
-                }
-
-                @Override
-                public Request authenticateProxy(Proxy proxy, Response response) throws IOException {
-                    return null;
-                }
-            });
+            okHttpClient.setProxySelector(new FixedProxySelector(proxy));
+            okHttpClient.setAuthenticator(NO_AUTHENTICATOR);
             okHttpClient.setConnectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT));
-            okHttpClient.setConnectionPool(new ConnectionPool(3, 60000));
+            okHttpClient.setConnectionPool(getConnectionPool());
             okHttpClient.setSocketFactory(SocketFactory.getDefault());
             Internal.instance.setNetwork(okHttpClient, mHostResolver);
 
@@ -285,30 +531,10 @@ public class MmsHttpClient {
             HostnameVerifier verifier = HttpsURLConnection.getDefaultHostnameVerifier();
             okHttpClient.setHostnameVerifier(verifier);
             okHttpClient.setSslSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
-            okHttpClient.setProxySelector(new ProxySelector() {
-                @Override
-                public List<Proxy> select(URI uri) {
-                    return Arrays.asList(proxy);
-                }
-
-                @Override
-                public void connectFailed(URI uri, SocketAddress address, IOException failure) {
-
-                }
-            });
-            okHttpClient.setAuthenticator(new com.squareup.okhttp.Authenticator() {
-                @Override
-                public Request authenticate(Proxy proxy, Response response) throws IOException {
-                    return null;
-                }
-
-                @Override
-                public Request authenticateProxy(Proxy proxy, Response response) throws IOException {
-                    return null;
-                }
-            });
+            okHttpClient.setProxySelector(new FixedProxySelector(proxy));
+            okHttpClient.setAuthenticator(NO_AUTHENTICATOR);
             okHttpClient.setConnectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT));
-            okHttpClient.setConnectionPool(new ConnectionPool(3, 60000));
+            okHttpClient.setConnectionPool(getConnectionPool());
             Internal.instance.setNetwork(okHttpClient, mHostResolver);
 
             return new HttpsURLConnectionImpl(url, okHttpClient);
@@ -317,6 +543,54 @@ public class MmsHttpClient {
         }
     }
 
+    /**
+     * Always selects the given proxy, or none. Equal to any other selector for the same proxy,
+     * for the same reason as {@link #NO_AUTHENTICATOR}: a new anonymous selector per request
+     * kept every request from reusing the connections in the pool.
+     */
+    private static final class FixedProxySelector extends ProxySelector {
+        private final Proxy mProxy;
+
+        FixedProxySelector(Proxy proxy) {
+            mProxy = proxy;
+        }
+
+        @Override
+        public List<Proxy> select(URI uri) {
+            if (mProxy != null) {
+                return Arrays.asList(mProxy);
+            } else {
+                return new ArrayList<Proxy>();
+            }
+        }
+
+        @Override
+        public void connectFailed(URI uri, SocketAddress address, IOException failure) {
+
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FixedProxySelector
+                    && (mProxy == null ? ((FixedProxySelector) o).mProxy == null
+                            : mProxy.equals(((FixedProxySelector) o).mProxy));
+        }
+
+        @Override
+        public int hashCode() {
+            return mProxy == null ? 0 : mProxy.hashCode();
+        }
+    }
+
+    /**
+     * Get the pool shared by every connection on this client's network, so requests made while
+     * the network is held reuse the same keep-alive connections to the MMSC
+     */
+    private ConnectionPool getConnectionPool() {
+        return mConnectionPool != null ? mConnectionPool
+                : new ConnectionPool(FALLBACK_MAX_IDLE_CONNECTIONS, FALLBACK_KEEP_ALIVE_MILLIS);
+    }
+
     private static void logHttpHeaders(Map<String, List<String>> headers) {
         final StringBuilder sb = new StringBuilder();
         if (headers != null) {
@@ -333,6 +607,15 @@ public class MmsHttpClient {
         }
     }
 
+    /**
+     * The largest response body we accept. mms_config only describes what the carrier lets us
+     * send, and some carriers deliver larger messages than that, so the limit never drops below
+     * {@link #MIN_MAX_RESPONSE_SIZE}.
+     */
+    private static long getMaxResponseSize(MmsConfig.Overridden mmsConfig) {
+        return Math.max(mmsConfig.getMaxMessageSize(), MIN_MAX_RESPONSE_SIZE);
+    }
+
     private static void checkMethod(String method) throws MmsHttpException {
         if (!METHOD_GET.equals(method) && !METHOD_POST.equals(method)) {
             throw new MmsHttpException(0/*statusCode*/, "Invalid method " + method);
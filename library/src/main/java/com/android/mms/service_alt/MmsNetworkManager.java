@@ -23,16 +23,23 @@ import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.net.NetworkInfo;
 import android.net.SSLCertificateSocketFactory;
+import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.SystemClock;
+import android.util.SparseArray;
 
 import com.klinker.android.logger.Log;
 
 import com.android.mms.service_alt.exception.MmsNetworkException;
+import com.klinker.android.send_message.Utils;
 import com.squareup.okhttp.ConnectionPool;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledFuture;
 
 public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
     private static final String TAG = "MmsNetworkManager";
@@ -42,6 +49,16 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
     // to make sure we don't bail prematurely
     private static final int NETWORK_ACQUIRE_TIMEOUT_MILLIS =
             NETWORK_REQUEST_TIMEOUT_MILLIS + (5 * 1000);
+    // How long the network is kept after the last request releases it, so requests that arrive
+    // close together share one network request instead of bringing the APN up and down
+    private static final long DEFAULT_NETWORK_LINGER_MILLIS = 5 * 1000;
+    // How many queued requests use the network at once
+    private static final int DEFAULT_MAX_PARALLEL_REQUESTS = 3;
+    // How long a resolved host is reused. The platform resolver doesn't hand out the record
+    // TTLs, so this is kept short and its own cache still applies the real ones underneath.
+    private static final long DNS_CACHE_TTL_MILLIS = 60 * 1000;
+    // MMSC, proxy and maybe a redirect target, there are only ever a few hosts
+    private static final int DNS_CACHE_MAX_ENTRIES = 8;
 
     // Borrowed from {@link android.net.Network}
     private static final boolean httpKeepAlive =
@@ -60,8 +77,11 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
     // The current count of MMS requests that require the MMS network
     // If mMmsRequestCount is 0, we should release the MMS network.
     private int mMmsRequestCount;
+    // Bumped whenever the network request is torn down, so leases taken out on an earlier
+    // request don't count against the current one when they're released
+    private long mGeneration;
     // This is really just for using the capability
-    private NetworkRequest mNetworkRequest;
+    private final NetworkRequest mNetworkRequest;
     // The callback to register when we request MMS network
     private ConnectivityManager.NetworkCallback mNetworkCallback;
 
@@ -69,6 +89,8 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
 
     // The OkHttp's ConnectionPool used by the HTTP client associated with this network manager
     private ConnectionPool mConnectionPool;
+    // The network the connections in mConnectionPool were made on
+    private Network mConnectionPoolNetwork;
 
     // The MMS HTTP client for this network
     private MmsHttpClient mMmsHttpClient;
@@ -78,6 +100,64 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
 
     private boolean permissionError = false;
 
+    // The pending release of the network, while it lingers after the last request
+    private ScheduledFuture<?> mPendingRelease;
+    private long mNetworkLingerMillis = DEFAULT_NETWORK_LINGER_MILLIS;
+
+    // Request attempts waiting for their turn on the network, see enqueue(Runnable, long)
+    private final PriorityQueue<QueuedRequest> mQueuedRequests = new PriorityQueue<QueuedRequest>();
+    private long mQueuedRequestCount;
+    private int mRunningRequests;
+    private int mMaxParallelRequests = DEFAULT_MAX_PARALLEL_REQUESTS;
+
+    // Hosts resolved on mDnsCacheNetwork, see resolveInetAddresses(String)
+    private final LinkedHashMap<String, CachedAddresses> mDnsCache =
+            new LinkedHashMap<String, CachedAddresses>(DNS_CACHE_MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedAddresses> eldest) {
+                    return size() > DNS_CACHE_MAX_ENTRIES;
+                }
+            };
+    private Network mDnsCacheNetwork;
+
+    // Managers shared by every request on a subscription, see get(Context, int)
+    private static final SparseArray<MmsNetworkManager> sCellularManagers =
+            new SparseArray<MmsNetworkManager>();
+    private static final SparseArray<MmsNetworkManager> sWifiManagers =
+            new SparseArray<MmsNetworkManager>();
+
+    // Requests that have the radios set up for MMS, see holdRadios(Context). The radios are
+    // shared by every subscription, so this is too.
+    private static final Object sRadioLock = new Object();
+    private static int sRadioHolders;
+    private static boolean sWifiTurnedOff;
+    private static boolean sWifiWasEnabled;
+    private static boolean sMobileDataTurnedOn;
+
+    /**
+     * Get the network manager shared by every MMS request on a subscription, so concurrent
+     * requests hold a single network request between them and reuse each other's connections
+     * to the MMSC.
+     *
+     * @param context the context to use
+     * @param subId the subscription to request the network for
+     * @return the shared manager
+     */
+    public static MmsNetworkManager get(Context context, int subId) {
+        // the network request is fixed when a manager is created, so wifi and cellular
+        // requests each get their own manager
+        final SparseArray<MmsNetworkManager> managers =
+                MmsRequest.useWifi(context) ? sWifiManagers : sCellularManagers;
+        synchronized (managers) {
+            MmsNetworkManager manager = managers.get(subId);
+            if (manager == null) {
+                manager = new MmsNetworkManager(context.getApplicationContext(), subId);
+                managers.put(subId, manager);
+            }
+            return manager;
+        }
+    }
+
     public MmsNetworkManager(Context context, int subId) {
         mContext = context;
         mNetworkCallback = null;
@@ -110,59 +190,228 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
         MmsConfigManager.getInstance().init(context);
     }
 
+    /**
+     * Set how many queued requests may use the network at once
+     *
+     * @param maxParallelRequests at least 1
+     */
+    public void setMaxParallelRequests(int maxParallelRequests) {
+        synchronized (mQueuedRequests) {
+            mMaxParallelRequests = Math.max(maxParallelRequests, 1);
+            drainLocked();
+        }
+    }
+
+    /**
+     * Set how long the network is kept after the last request is done with it
+     *
+     * @param lingerMillis 0 releases it right away
+     */
+    public void setNetworkLingerMillis(long lingerMillis) {
+        synchronized (this) {
+            mNetworkLingerMillis = Math.max(lingerMillis, 0);
+        }
+    }
+
+    /**
+     * A queued attempt, ordered by priority and then by when it was queued
+     */
+    private static class QueuedRequest implements Comparable<QueuedRequest> {
+        final Runnable attempt;
+        final long priority;
+        final long sequence;
+
+        QueuedRequest(Runnable attempt, long priority, long sequence) {
+            this.attempt = attempt;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedRequest other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Queue a request attempt, which acquires and releases the network itself. At most
+     * {@link #setMaxParallelRequests(int)} attempts run at a time, lowest priority value first
+     * and in the order they were queued otherwise, and the network lingers between them, so a
+     * burst of requests is drained over a single network request.
+     *
+     * @param attempt the attempt to run on the request threads
+     * @param priority lower values run first
+     */
+    void enqueue(Runnable attempt, long priority) {
+        synchronized (mQueuedRequests) {
+            mQueuedRequests.add(new QueuedRequest(attempt, priority, mQueuedRequestCount++));
+            drainLocked();
+        }
+    }
+
+    private void drainLocked() {
+        while (mRunningRequests < mMaxParallelRequests && !mQueuedRequests.isEmpty()) {
+            final Runnable attempt = mQueuedRequests.poll().attempt;
+            mRunningRequests++;
+            RequestScheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        attempt.run();
+                    } finally {
+                        synchronized (mQueuedRequests) {
+                            mRunningRequests--;
+                            drainLocked();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * One holder's claim on the MMS network, from {@link #acquireNetwork()}. It has to be given
+     * back with {@link #releaseNetwork(Lease)} exactly once.
+     */
+    public static final class Lease {
+        private final long mGeneration;
+        private final Network mNetwork;
+        private boolean mReleased;
+
+        private Lease(long generation, Network network) {
+            mGeneration = generation;
+            mNetwork = network;
+        }
+
+        /**
+         * @return the network that was acquired, or null if it is used without permission to
+         *         request it
+         */
+        public Network getNetwork() {
+            return mNetwork;
+        }
+    }
+
     /**
      * Acquire the MMS network
      *
+     * @return the lease to release the network with
      * @throws MmsNetworkException if we fail to acquire it
      */
-    public Network acquireNetwork() throws MmsNetworkException {
+    public Lease acquireNetwork() throws MmsNetworkException {
         synchronized (this) {
             mMmsRequestCount += 1;
+            long generation = mGeneration;
+            cancelPendingReleaseLocked();
             if (mNetwork != null) {
                 // Already available
                 Log.d(TAG, "MmsNetworkManager: already available");
-                return mNetwork;
+                return new Lease(mGeneration, mNetwork);
+            }
+            if (mNetworkCallback == null) {
+                Log.d(TAG, "MmsNetworkManager: start new network request");
+                // Not available, so start a new request
+                newRequest();
+            } else {
+                // Another request is already waiting for the network, wait along with it
+                Log.d(TAG, "MmsNetworkManager: network request in progress");
             }
-            Log.d(TAG, "MmsNetworkManager: start new network request");
-            // Not available, so start a new request
-            newRequest();
             final long shouldEnd = SystemClock.elapsedRealtime() + NETWORK_ACQUIRE_TIMEOUT_MILLIS;
             long waitTime = NETWORK_ACQUIRE_TIMEOUT_MILLIS;
-            while (waitTime > 0) {
+            while (mNetwork == null && !permissionError && waitTime > 0) {
                 try {
                     this.wait(waitTime);
                 } catch (InterruptedException e) {
                     Log.w(TAG, "MmsNetworkManager: acquire network wait interrupted");
                 }
-                if (mNetwork != null || permissionError) {
-                    // Success
-                    return mNetwork;
+                if (generation != mGeneration) {
+                    // The request was torn down while waiting, either lost or given up on, so
+                    // count this one against the next request, starting it if nobody has yet
+                    generation = mGeneration;
+                    mMmsRequestCount += 1;
+                    if (mNetwork == null && mNetworkCallback == null) {
+                        Log.d(TAG, "MmsNetworkManager: network request gone, requesting again");
+                        newRequest();
+                    }
                 }
                 // Calculate remaining waiting time to make sure we wait the full timeout period
                 waitTime = shouldEnd - SystemClock.elapsedRealtime();
             }
-            // Timed out, so release the request and fail
+            if (mNetwork != null || permissionError) {
+                // Success
+                return new Lease(generation, mNetwork);
+            }
             Log.d(TAG, "MmsNetworkManager: timed out");
-            releaseRequestLocked(mNetworkCallback);
+            if (mMmsRequestCount > 1) {
+                // Others are still waiting for the request, so leave it to them
+                mMmsRequestCount -= 1;
+            } else {
+                // Timed out, so release the request and fail
+                releaseRequestLocked(mNetworkCallback);
+            }
             throw new MmsNetworkException("Acquiring network timed out");
         }
     }
 
     /**
-     * Release the MMS network when nobody is holding on to it.
+     * Release the MMS network when nobody is holding on to it, after it has lingered for a
+     * while in case another request comes along.
+     *
+     * @param lease what {@link #acquireNetwork()} returned, null is ignored
      */
-    public void releaseNetwork() {
+    public void releaseNetwork(Lease lease) {
         synchronized (this) {
+            if (lease == null || lease.mReleased) {
+                return;
+            }
+            lease.mReleased = true;
+            if (lease.mGeneration != mGeneration) {
+                // The request it was counted against is gone already
+                Log.d(TAG, "MmsNetworkManager: release of an old lease, ignored");
+                return;
+            }
             if (mMmsRequestCount > 0) {
                 mMmsRequestCount -= 1;
                 Log.d(TAG, "MmsNetworkManager: release, count=" + mMmsRequestCount);
                 if (mMmsRequestCount < 1) {
-                    releaseRequestLocked(mNetworkCallback);
+                    scheduleReleaseLocked();
                 }
             }
         }
     }
 
+    private void scheduleReleaseLocked() {
+        cancelPendingReleaseLocked();
+        if (mNetworkLingerMillis == 0 || mNetworkCallback == null) {
+            releaseRequestLocked(mNetworkCallback);
+            return;
+        }
+        final ConnectivityManager.NetworkCallback callback = mNetworkCallback;
+        mPendingRelease = RequestScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MmsNetworkManager.this) {
+                    // Only if nobody acquired the network and it wasn't replaced meanwhile
+                    if (mMmsRequestCount < 1 && mNetworkCallback == callback) {
+                        Log.d(TAG, "MmsNetworkManager: linger over, releasing");
+                        mPendingRelease = null;
+                        releaseRequestLocked(callback);
+                    }
+                }
+            }
+        }, mNetworkLingerMillis);
+    }
+
+    private void cancelPendingReleaseLocked() {
+        if (mPendingRelease != null) {
+            mPendingRelease.cancel(false);
+            mPendingRelease = null;
+        }
+    }
+
     /**
      * Start a new {@link NetworkRequest} for MMS
      */
@@ -185,6 +434,7 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
                 super.onLost(network);
                 Log.d(TAG, "NetworkCallbackListener.onLost: network=" + network);
                 synchronized (MmsNetworkManager.this) {
+                    clearDnsCacheLocked();
                     releaseRequestLocked(this);
                     MmsNetworkManager.this.notifyAll();
                 }
@@ -232,19 +482,100 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
      * Reset the state
      */
     private void resetLocked() {
+        cancelPendingReleaseLocked();
         mNetworkCallback = null;
         mNetwork = null;
         mMmsRequestCount = 0;
-        // Currently we follow what android.net.Network does with ConnectionPool,
-        // which is per Network object. So if Network changes, we should clear
-        // out the ConnectionPool and thus the MmsHttpClient (since it is linked
-        // to a specific ConnectionPool).
-        mConnectionPool = null;
+        mGeneration++;
+        // The manager outlives the request, so the next one gets to ask for the network again
+        // instead of going without it for the rest of the process
+        permissionError = false;
+        // The MmsHttpClient is linked to the socket factory of the Network, so it goes with it.
+        // The ConnectionPool is kept until a different Network shows up, so a request that
+        // gets the same Network back can still reuse the connections made on it.
         mMmsHttpClient = null;
     }
 
+    /**
+     * Turn mobile data on and, unless MMS goes over Wi-Fi, Wi-Fi off for a request. How they
+     * were is saved when the first request comes along and put back once the last one calls
+     * {@link #restoreRadios(Context)}, so requests running side by side don't undo each other.
+     *
+     * @param context the context to use
+     */
+    static void holdRadios(Context context) {
+        synchronized (sRadioLock) {
+            if (sRadioHolders++ == 0) {
+                sWifiTurnedOff = false;
+                sMobileDataTurnedOn = false;
+            }
+            if (MmsRequest.useWifi(context)) {
+                return;
+            }
+
+            if (!sWifiTurnedOff) {
+                final WifiManager wifi =
+                        (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+                sWifiWasEnabled = wifi.isWifiEnabled();
+                wifi.setWifiEnabled(false);
+                sWifiTurnedOff = true;
+            }
+
+            if (!sMobileDataTurnedOn
+                    && Boolean.FALSE.equals(Utils.isMobileDataEnabled(context))) {
+                Log.v(TAG, "mobile data not enabled, so forcing it to enable");
+                Utils.setMobileDataEnabled(context, true);
+                sMobileDataTurnedOn = true;
+            }
+        }
+    }
+
+    /**
+     * Give back a {@link #holdRadios(Context)}, restoring the radios after the last one
+     *
+     * @param context the context to use
+     */
+    static void restoreRadios(Context context) {
+        synchronized (sRadioLock) {
+            if (sRadioHolders == 0 || --sRadioHolders > 0) {
+                return;
+            }
+
+            if (sMobileDataTurnedOn) {
+                Log.v(TAG, "setting mobile data back to disabled");
+                Utils.setMobileDataEnabled(context, false);
+                sMobileDataTurnedOn = false;
+            }
+
+            if (sWifiTurnedOff) {
+                final WifiManager wifi =
+                        (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+                wifi.setWifiEnabled(sWifiWasEnabled);
+                sWifiTurnedOff = false;
+            }
+        }
+    }
+
     private static final InetAddress[] EMPTY_ADDRESS_ARRAY = new InetAddress[0];
 
+    /**
+     * The addresses a host resolved to and when they stop being used
+     */
+    private static class CachedAddresses {
+        final InetAddress[] addresses;
+        final long expires;
+
+        CachedAddresses(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Resolve a host on the MMS network. Results are cached per network for a short while, and
+     * the lookup itself happens outside the lock so requests don't queue up behind each
+     * other's DNS queries.
+     */
     @Override
     public InetAddress[] resolveInetAddresses(String host) throws UnknownHostException {
         Network network = null;
@@ -253,8 +584,32 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
                 return EMPTY_ADDRESS_ARRAY;
             }
             network = mNetwork;
+            if (!network.equals(mDnsCacheNetwork)) {
+                clearDnsCacheLocked();
+                mDnsCacheNetwork = network;
+            }
+            final CachedAddresses cached = mDnsCache.get(host);
+            if (cached != null) {
+                if (cached.expires > SystemClock.elapsedRealtime()) {
+                    return cached.addresses.clone();
+                }
+                mDnsCache.remove(host);
+            }
+        }
+        final InetAddress[] addresses = network.getAllByName(host);
+        synchronized (this) {
+            // Don't cache for a network that went away while resolving
+            if (network.equals(mDnsCacheNetwork) && addresses.length > 0) {
+                mDnsCache.put(host, new CachedAddresses(addresses.clone(),
+                        SystemClock.elapsedRealtime() + DNS_CACHE_TTL_MILLIS));
+            }
         }
-        return network.getAllByName(host);
+        return addresses;
+    }
+
+    private void clearDnsCacheLocked() {
+        mDnsCache.clear();
+        mDnsCacheNetwork = null;
     }
 
     private ConnectivityManager getConnectivityManager() {
@@ -266,8 +621,17 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
     }
 
     private ConnectionPool getOrCreateConnectionPoolLocked() {
+        // Currently we follow what android.net.Network does with ConnectionPool,
+        // which is per Network object. So if Network changes, we should clear
+        // out the ConnectionPool.
+        if (mConnectionPool != null && mNetwork != null
+                && !mNetwork.equals(mConnectionPoolNetwork)) {
+            mConnectionPool.evictAll();
+            mConnectionPool = null;
+        }
         if (mConnectionPool == null) {
             mConnectionPool = new ConnectionPool(httpMaxConnections, httpKeepAliveDurationMs);
+            mConnectionPoolNetwork = mNetwork;
         }
         return mConnectionPool;
     }
@@ -309,9 +673,6 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
         synchronized (this) {
             if (mNetwork == null) {
                 Log.d(TAG, "MmsNetworkManager: getApnName: network not available");
-                mNetworkRequest = new NetworkRequest.Builder()
-                        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
-                        .build();
                 return null;
             }
             network = mNetwork;
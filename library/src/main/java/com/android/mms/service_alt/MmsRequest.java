@@ -23,7 +23,6 @@ import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.Settings;
@@ -36,13 +35,22 @@ import com.klinker.android.send_message.Utils;
 import com.android.mms.service_alt.exception.ApnException;
 import com.android.mms.service_alt.exception.MmsHttpException;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
 /**
  * Base class for MMS requests. This has the common logic of sending/downloading MMS.
  */
 public abstract class MmsRequest {
     private static final String TAG = "MmsRequest";
 
-    private static final int RETRY_TIMES = 3;
+    // Upper bound for the wait between two attempts
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+
+    private static final Random sJitter = new Random();
 
     /**
      * Interface for certain functionalities from MmsService
@@ -88,7 +96,14 @@ public abstract class MmsRequest {
     // MMS config overrides
     protected Bundle mMmsConfigOverrides;
 
-    private boolean mobileDataEnabled;
+    private volatile boolean mCancelled = false;
+
+    // Directory in the cache that send and download PDUs are spooled to, see createSpoolFile()
+    private static final String SPOOL_DIR = "mms_spool";
+    // Spooled send and download PDUs that haven't been touched for this long are left over from
+    // a process that died mid-request, see sweepSpoolFiles(Context)
+    private static final long STALE_SPOOL_FILE_MILLIS = 60 * 60 * 1000;
+    private static boolean sSpoolFilesSwept;
 
     public MmsRequest(RequestManager requestManager, int subId, String creator,
             Bundle configOverrides) {
@@ -136,114 +151,270 @@ public abstract class MmsRequest {
     }
 
     /**
-     * Execute the request
+     * Execute the request and wait for it to finish, including any retries
      *
      * @param context The context
      * @param networkManager The network manager to use
      */
     public void execute(Context context, MmsNetworkManager networkManager) {
-        int result = SmsManager.MMS_ERROR_UNSPECIFIED;
-        int httpStatusCode = 0;
-        byte[] response = null;
+        final CountDownLatch finished = new CountDownLatch(1);
+        executeAsync(context, networkManager, new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        });
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "MmsRequest: interrupted while waiting, the request carries on", e);
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-        boolean isWifiEnabled = wifi.isWifiEnabled();
+    /**
+     * Execute the request on the library's request threads and return right away. A failed
+     * attempt is retried after a jittered, exponentially growing wait, whose length and the
+     * number of attempts depend on the kind of failure (see the CONFIG_RETRY_ keys in
+     * {@link MmsConfig}). The network is released while waiting.
+     *
+     * @param context The context
+     * @param networkManager The network manager to use
+     * @param onFinished Run once the result has been processed, can be null
+     */
+    public void executeAsync(Context context, MmsNetworkManager networkManager,
+            Runnable onFinished) {
+        sweepSpoolFiles(context);
+        new Execution(context, networkManager, onFinished).start();
+    }
 
-        if (!useWifi(context)) {
-            wifi.setWifiEnabled(false);
+    /**
+     * Create a file to spool a send or download PDU to. They get a directory of their own in the
+     * cache, so the sweep for files left behind never touches what the app keeps there.
+     *
+     * @param prefix what the file name starts with, "send" or "download"
+     */
+    public static File createSpoolFile(Context context, String prefix) throws IOException {
+        final File spoolDir = new File(context.getCacheDir(), SPOOL_DIR);
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            throw new IOException("Could not create " + spoolDir);
         }
+        return File.createTempFile(prefix, ".pdu", spoolDir);
+    }
 
-        mobileDataEnabled = Utils.isMobileDataEnabled(context);
-        Log.v(TAG, "mobile data enabled: " + mobileDataEnabled);
+    /**
+     * Delete the spool files a previous process left behind when it was killed during a request.
+     * Runs once per process, on the request threads.
+     */
+    private static void sweepSpoolFiles(Context context) {
+        synchronized (MmsRequest.class) {
+            if (sSpoolFilesSwept) {
+                return;
+            }
+            sSpoolFilesSwept = true;
+        }
+        final File spoolDir = new File(context.getCacheDir(), SPOOL_DIR);
+        RequestScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = spoolDir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                final long staleBefore = System.currentTimeMillis() - STALE_SPOOL_FILE_MILLIS;
+                for (File file : files) {
+                    if (file.lastModified() < staleBefore && file.delete()) {
+                        Log.d(TAG, "MmsRequest: deleted stale spool file " + file.getName());
+                    }
+                }
+            }
+        });
+    }
 
-        if (!mobileDataEnabled && !useWifi(context)) {
-            Log.v(TAG, "mobile data not enabled, so forcing it to enable");
-            Utils.setMobileDataEnabled(context, true);
+    /**
+     * The attempts of one execution, queued one after the other on the network manager
+     */
+    private class Execution implements Runnable {
+        private final Context mContext;
+        private final MmsNetworkManager mNetworkManager;
+        private final Runnable mOnFinished;
+        private int mAttempts = 0;
+        private int mResult = SmsManager.MMS_ERROR_UNSPECIFIED;
+        private int mHttpStatusCode = 0;
+
+        Execution(Context context, MmsNetworkManager networkManager, Runnable onFinished) {
+            mContext = context;
+            mNetworkManager = networkManager;
+            mOnFinished = onFinished;
         }
 
-        if (!ensureMmsConfigLoaded()) { // Check mms config
-            Log.e(TAG, "MmsRequest: mms config is not loaded yet");
-            result = SmsManager.MMS_ERROR_CONFIGURATION_ERROR;
-        } else if (!prepareForHttpRequest()) { // Prepare request, like reading pdu data from user
-            Log.e(TAG, "MmsRequest: failed to prepare for request");
-            result = SmsManager.MMS_ERROR_IO_ERROR;
-        } else if (!isDataNetworkAvailable(context, mSubId)) {
-            Log.e(TAG, "MmsRequest: in airplane mode or mobile data disabled");
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
-                result = SmsManager.MMS_ERROR_NO_DATA_NETWORK;
-            } else {
-                result = 8;
+        void start() {
+            MmsNetworkManager.holdRadios(mContext);
+
+            if (!ensureMmsConfigLoaded()) { // Check mms config
+                Log.e(TAG, "MmsRequest: mms config is not loaded yet");
+                mResult = SmsManager.MMS_ERROR_CONFIGURATION_ERROR;
+                finish(null);
+            } else if (!prepareForHttpRequest()) { // Prepare request, like reading pdu data from user
+                Log.e(TAG, "MmsRequest: failed to prepare for request");
+                mResult = SmsManager.MMS_ERROR_IO_ERROR;
+                finish(null);
+            } else if (!isDataNetworkAvailable(mContext, mSubId)) {
+                Log.e(TAG, "MmsRequest: in airplane mode or mobile data disabled");
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+                    mResult = SmsManager.MMS_ERROR_NO_DATA_NETWORK;
+                } else {
+                    mResult = 8;
+                }
+                finish(null);
+            } else { // Execute
+                mNetworkManager.enqueue(this, getQueuePriority());
             }
-        } else { // Execute
-            long retryDelaySecs = 2;
-            // Try multiple times of MMS HTTP request
-            for (int i = 0; i < RETRY_TIMES; i++) {
-                try {
-                    try {
-                        networkManager.acquireNetwork();
-                    } catch (Exception e) {
-                        Log.e(TAG, "error acquiring network", e);
-                    }
+        }
 
-                    final String apnName = networkManager.getApnName();
-                    try {
-                        ApnSettings apn = null;
-                        try {
-                            apn = ApnSettings.load(context, apnName, mSubId);
-                        } catch (ApnException e) {
-                            // If no APN could be found, fall back to trying without the APN name
-                            if (apnName == null) {
-                                // If the APN name was already null then don't need to retry
-                                throw (e);
-                            }
-                            Log.i(TAG, "MmsRequest: No match with APN name:"
-                                    + apnName + ", try with no name");
-                            apn = ApnSettings.load(context, null, mSubId);
-                        }
-                        Log.i(TAG, "MmsRequest: using " + apn.toString());
-                        response = doHttp(context, networkManager, apn);
-                        result = Activity.RESULT_OK;
-                        // Success
-                        break;
-                    } finally {
-                        networkManager.releaseNetwork();
-                    }
-                } catch (ApnException e) {
-                    Log.e(TAG, "MmsRequest: APN failure", e);
-                    result = SmsManager.MMS_ERROR_INVALID_APN;
-                    break;
-//                    } catch (MmsNetworkException e) {
-//                        Log.e(TAG, "MmsRequest: MMS network acquiring failure", e);
-//                        result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
-//                        // Retry
-                } catch (MmsHttpException e) {
-                    Log.e(TAG, "MmsRequest: HTTP or network I/O failure", e);
-                    result = SmsManager.MMS_ERROR_HTTP_FAILURE;
-                    httpStatusCode = e.getStatusCode();
-                    // Retry
-                } catch (Exception e) {
-                    Log.e(TAG, "MmsRequest: unexpected failure", e);
-                    result = SmsManager.MMS_ERROR_UNSPECIFIED;
-                    break;
+        @Override
+        public void run() {
+            if (mCancelled) {
+                Log.i(TAG, "MmsRequest: cancelled");
+                mResult = SmsManager.MMS_ERROR_UNSPECIFIED;
+                finish(null);
+                return;
+            }
+            final byte[] response;
+            try {
+                response = attempt();
+            } catch (ApnException e) {
+                Log.e(TAG, "MmsRequest: APN failure", e);
+                mResult = SmsManager.MMS_ERROR_INVALID_APN;
+                retryOrFinish(mMmsConfig.getRetryApnFailureAttempts(),
+                        mMmsConfig.getRetryApnFailureDelay());
+                return;
+//            } catch (MmsNetworkException e) {
+//                Log.e(TAG, "MmsRequest: MMS network acquiring failure", e);
+//                result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
+//                // Retry
+            } catch (MmsHttpException e) {
+                Log.e(TAG, "MmsRequest: HTTP or network I/O failure", e);
+                mResult = SmsManager.MMS_ERROR_HTTP_FAILURE;
+                mHttpStatusCode = e.getStatusCode();
+                if (mHttpStatusCode / 100 == 5) {
+                    retryOrFinish(mMmsConfig.getRetryServerErrorAttempts(),
+                            mMmsConfig.getRetryServerErrorDelay());
+                } else if (e.getCause() instanceof SocketTimeoutException) {
+                    retryOrFinish(mMmsConfig.getRetryTimeoutAttempts(),
+                            mMmsConfig.getRetryTimeoutDelay());
+                } else {
+                    retryOrFinish(mMmsConfig.getRetryNetworkErrorAttempts(),
+                            mMmsConfig.getRetryNetworkErrorDelay());
                 }
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, "MmsRequest: unexpected failure", e);
+                mResult = SmsManager.MMS_ERROR_UNSPECIFIED;
+                finish(null);
+                return;
+            }
+            // Success
+            mResult = Activity.RESULT_OK;
+            finish(response);
+        }
+
+        private byte[] attempt() throws ApnException, MmsHttpException {
+            mAttempts++;
+            MmsNetworkManager.Lease lease = null;
+            try {
+                lease = mNetworkManager.acquireNetwork();
+            } catch (Exception e) {
+                Log.e(TAG, "error acquiring network", e);
+            }
+
+            final String apnName = mNetworkManager.getApnName();
+            try {
+                ApnSettings apn = null;
                 try {
-                    Thread.sleep(retryDelaySecs * 1000, 0/*nano*/);
-                } catch (InterruptedException e) {
+                    apn = ApnSettings.load(mContext, apnName, mSubId);
+                } catch (ApnException e) {
+                    // If no APN could be found, fall back to trying without the APN name
+                    if (apnName == null) {
+                        // If the APN name was already null then don't need to retry
+                        throw (e);
+                    }
+                    Log.i(TAG, "MmsRequest: No match with APN name:"
+                            + apnName + ", try with no name");
+                    apn = ApnSettings.load(mContext, null, mSubId);
                 }
-                retryDelaySecs <<= 1;
+                Log.i(TAG, "MmsRequest: using " + apn.toString());
+                return doHttp(mContext, mNetworkManager, apn);
+            } finally {
+                mNetworkManager.releaseNetwork(lease);
             }
         }
 
-        if (!mobileDataEnabled) {
-            Log.v(TAG, "setting mobile data back to disabled");
-            Utils.setMobileDataEnabled(context, false);
+        /**
+         * @param maxAttempts How many attempts the last failure allows in total
+         * @param initialDelay The wait before the first retry, in ms
+         */
+        private void retryOrFinish(int maxAttempts, int initialDelay) {
+            if (mAttempts >= maxAttempts || mCancelled) {
+                finish(null);
+                return;
+            }
+            final long delay = getRetryDelay(initialDelay, mAttempts);
+            Log.i(TAG, "MmsRequest: retrying in " + delay + "ms");
+            RequestScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mNetworkManager.enqueue(Execution.this, getQueuePriority());
+                }
+            }, delay);
         }
 
-        if (!useWifi(context)) {
-            wifi.setWifiEnabled(isWifiEnabled);
+        private void finish(byte[] response) {
+            try {
+                MmsNetworkManager.restoreRadios(mContext);
+                processResult(mContext, mResult, response, mHttpStatusCode);
+            } finally {
+                if (mOnFinished != null) {
+                    mOnFinished.run();
+                }
+            }
         }
+    }
 
-        processResult(context, result, response, httpStatusCode);
+    /**
+     * Cancel the request. An attempt that is already talking to the MMSC is allowed to finish,
+     * but no further attempt is made and the request completes with
+     * {@link SmsManager#MMS_ERROR_UNSPECIFIED} unless that attempt succeeded.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return Where the request goes in the network manager's queue, lower values run first.
+     *         Requests with the same value run in the order they were queued.
+     */
+    protected long getQueuePriority() {
+        return 0;
+    }
+
+    /**
+     * Exponential backoff with jitter: the wait before the nth retry is picked at random from
+     * the upper half of initialDelay * 2^(n-1), so requests that failed together don't all come
+     * back at once.
+     */
+    static long getRetryDelay(int initialDelay, int retry) {
+        long delay = Math.max(initialDelay, 0);
+        for (int i = 1; i < retry && delay < MAX_RETRY_DELAY_MILLIS; i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+        final long half = delay / 2;
+        return delay - half + (long) (sJitter.nextDouble() * (half + 1));
     }
 
     /**
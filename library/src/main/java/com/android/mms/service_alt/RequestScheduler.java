@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.mms.service_alt;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs MMS request attempts and the waits between them. All pending retries share one timer
+ * thread, which only hands attempts over when they are due, so a request holds neither a thread
+ * nor the network while it backs off.
+ */
+final class RequestScheduler {
+
+    private static ScheduledExecutorService sTimer;
+    private static ExecutorService sWorkers;
+
+    private RequestScheduler() {
+    }
+
+    /**
+     * Run an attempt on the worker pool now
+     */
+    static void submit(Runnable attempt) {
+        getWorkers().execute(attempt);
+    }
+
+    /**
+     * Run a task on the timer thread once the delay has passed. The task must be quick, anything
+     * that blocks belongs on the worker pool.
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return getTimer().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "klinker-mms-retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return sTimer;
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (sWorkers == null) {
+            sWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "klinker-mms-request-" + mCount.incrementAndGet());
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+
+        return sWorkers;
+    }
+}
@@ -38,9 +38,12 @@ import com.google.android.mms.pdu_alt.PduHeaders;
 import com.google.android.mms.pdu_alt.PduParser;
 import com.google.android.mms.pdu_alt.PduPersister;
 import com.google.android.mms.pdu_alt.SendConf;
-import com.google.android.mms.pdu_alt.SendReq;
 import com.google.android.mms.util_alt.SqliteWrapper;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * Request to send an MMS
  */
@@ -48,15 +51,25 @@ public class SendRequest extends MmsRequest {
     private static final String TAG = "SendRequest";
 
     private final Uri mPduUri;
-    private byte[] mPduData;
+    private MmsHttpClient.PduSource mPduSource;
     private final String mLocationUrl;
     private final PendingIntent mSentIntent;
 
     public SendRequest(RequestManager manager, int subId, Uri contentUri, String locationUrl,
             PendingIntent sentIntent, String creator, Bundle configOverrides) {
+        this(manager, subId, contentUri, null, locationUrl, sentIntent, creator, configOverrides);
+    }
+
+    /**
+     * @param pdu the PDU to send, opened again for every attempt. If null, the PDU is read
+     *            from the request manager.
+     */
+    public SendRequest(RequestManager manager, int subId, Uri contentUri,
+            MmsHttpClient.PduSource pdu, String locationUrl, PendingIntent sentIntent,
+            String creator, Bundle configOverrides) {
         super(manager, subId, creator, configOverrides);
         mPduUri = contentUri;
-        mPduData = null;
+        mPduSource = pdu;
         mLocationUrl = locationUrl;
         mSentIntent = sentIntent;
     }
@@ -69,14 +82,18 @@ public class SendRequest extends MmsRequest {
             Log.e(TAG, "MMS network is not ready!");
             throw new MmsHttpException(0/*statusCode*/, "MMS network is not ready");
         }
-        return mmsHttpClient.execute(
+        // the response is a small SendConf, only the request needs to be streamed
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        mmsHttpClient.execute(
                 mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
-                mPduData,
+                mPduSource,
                 MmsHttpClient.METHOD_POST,
                 apn.isProxySet(),
                 apn.getProxyAddress(),
                 apn.getProxyPort(),
-                mMmsConfig);
+                mMmsConfig,
+                response);
+        return response.toByteArray();
     }
 
     @Override
@@ -92,23 +109,20 @@ public class SendRequest extends MmsRequest {
     @Override
     protected Uri persistIfRequired(Context context, int result, byte[] response) {
         Log.d(TAG, "SendRequest.persistIfRequired");
-        if (mPduData == null) {
+        if (mPduSource == null) {
             Log.e(TAG, "SendRequest.persistIfRequired: empty PDU");
             return null;
         }
         final long identity = Binder.clearCallingIdentity();
         try {
             final boolean supportContentDisposition = mMmsConfig.getSupportMmsContentDisposition();
-            // Persist the request PDU first
-            GenericPdu pdu = (new PduParser(mPduData, supportContentDisposition)).parse();
-            if (pdu == null) {
-                Log.e(TAG, "SendRequest.persistIfRequired: can't parse input PDU");
-                return null;
-            }
-            if (!(pdu instanceof SendReq)) {
+            // The request was persisted before it was sent, so only its type needs checking,
+            // which is always the first header
+            if (!isSendReq(mPduSource)) {
                 Log.d(TAG, "SendRequest.persistIfRequired: not SendReq");
                 return null;
             }
+            GenericPdu pdu;
 //            final PduPersister persister = PduPersister.getPduPersister(context);
 //            final Uri messageUri = persister.persist(
 //                    pdu,
@@ -171,17 +185,39 @@ public class SendRequest extends MmsRequest {
         return null;
     }
 
+    private static boolean isSendReq(MmsHttpClient.PduSource source) {
+        InputStream in = null;
+        try {
+            in = source.open();
+            return in.read() == PduHeaders.MESSAGE_TYPE
+                    && in.read() == PduHeaders.MESSAGE_TYPE_SEND_REQ;
+        } catch (IOException e) {
+            Log.e(TAG, "SendRequest.persistIfRequired: can't read input PDU", e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
     /**
      * Read the pdu from the file descriptor and cache pdu bytes in request
      * @return true if pdu read successfully
      */
     private boolean readPduFromContentUri() {
-        if (mPduData != null) {
+        if (mPduSource != null) {
             return true;
         }
         final int bytesTobeRead = mMmsConfig.getMaxMessageSize();
-        mPduData = mRequestManager.readPduFromContentUri(mPduUri, bytesTobeRead);
-        return (mPduData != null);
+        final byte[] pduData = mRequestManager.readPduFromContentUri(mPduUri, bytesTobeRead);
+        if (pduData != null) {
+            mPduSource = MmsHttpClient.pduSourceOf(pduData);
+        }
+        return (mPduSource != null);
     }
 
     /**
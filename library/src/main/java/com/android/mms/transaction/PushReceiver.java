@@ -33,6 +33,7 @@ import android.database.sqlite.SqliteWrapper;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.PowerManager;
 import android.preference.PreferenceManager;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Mms.Inbox;
@@ -84,6 +85,9 @@ public class PushReceiver extends BroadcastReceiver {
 
     static final int COLUMN_CONTENT_LOCATION = 0;
 
+    // Upper bound on holding the device awake for a download, in case it never finishes
+    private static final long DOWNLOAD_WAKE_LOCK_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
     private static Set<String> downloadedUrls = new HashSet<String>();
     private static final ExecutorService PUSH_RECEIVER_EXECUTOR = Executors.newSingleThreadExecutor();
 
@@ -234,8 +238,20 @@ public class PushReceiver extends BroadcastReceiver {
                                         Utils.getDefaultSubscriptionId(),
                                         location, transactionId, uri, null, null,
                                         null, mContext);
-                                MmsNetworkManager manager = new MmsNetworkManager(mContext, Utils.getDefaultSubscriptionId());
-                                request.execute(mContext, manager);
+                                MmsNetworkManager manager = MmsNetworkManager.get(mContext, Utils.getDefaultSubscriptionId());
+
+                                // the broadcast is finished long before the download is, so keep
+                                // the device awake through the network request and any retries
+                                PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+                                final PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "smsmms:push-download-lock");
+                                wakeLock.setReferenceCounted(false);
+                                wakeLock.acquire(DOWNLOAD_WAKE_LOCK_TIMEOUT_MILLIS);
+                                request.executeAsync(mContext, manager, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        wakeLock.release();
+                                    }
+                                });
                             }
                         } else if (LOCAL_LOGV) {
                             Log.v(TAG, "Skip downloading duplicate message: "
@@ -355,8 +355,8 @@ public class TransactionService extends Service implements Observer {
                                             PushReceiver.getTransactionId(this, uri),
                                             uri, null, null,
                                             null, this);
-                                    MmsNetworkManager manager = new MmsNetworkManager(this, Utils.getDefaultSubscriptionId());
-                                    request.execute(this, manager);
+                                    MmsNetworkManager manager = MmsNetworkManager.get(this, Utils.getDefaultSubscriptionId());
+                                    request.executeAsync(this, manager, null);
 
                                     // can't handle many messages at once.
                                     break;
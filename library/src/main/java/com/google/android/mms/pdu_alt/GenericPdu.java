@@ -109,4 +109,13 @@ public class GenericPdu {
     public void setFrom(EncodedStringValue value) {
         mPduHeaders.setEncodedStringValue(value, PduHeaders.FROM);
     }
+
+    /**
+     * Estimate the number of bytes held in memory by this PDU.
+     *
+     * @return the estimated size in bytes
+     */
+    public int getEstimatedSize() {
+        return mPduHeaders.getEstimatedSize();
+    }
 }
@@ -146,4 +146,22 @@ public class MultimediaMessagePdu extends GenericPdu{
     public void setDate(long value) {
         mPduHeaders.setLongInteger(value, PduHeaders.DATE);
     }
+
+    /**
+     * Estimate the number of bytes held in memory by this PDU, including
+     * the data of parts that are stored inline rather than as a Uri.
+     *
+     * @return the estimated size in bytes
+     */
+    @Override
+    public int getEstimatedSize() {
+        int size = super.getEstimatedSize();
+        if (mMessageBody != null) {
+            int partsNum = mMessageBody.getPartsNum();
+            for (int i = 0; i < partsNum; i++) {
+                size += mMessageBody.getPart(i).getEstimatedSize();
+            }
+        }
+        return size;
+    }
 }
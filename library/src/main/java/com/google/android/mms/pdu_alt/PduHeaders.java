@@ -18,8 +18,12 @@ package com.google.android.mms.pdu_alt;
 
 import com.google.android.mms.InvalidHeaderValueException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 public class PduHeaders {
     /**
@@ -318,6 +322,11 @@ public class PduHeaders {
     public static final int STORE_STATUS_ERROR_PERMANENT_MMBOX_FULL             = 0xE4;
     public static final int STORE_STATUS_ERROR_END                              = 0xFF;
 
+    /**
+     * Rough per-entry cost of mHeaderMap, used by getEstimatedSize().
+     */
+    private static final int HEADER_ENTRY_OVERHEAD = 64;
+
     /**
      * The map contains the value of all headers.
      */
@@ -717,4 +726,141 @@ public class PduHeaders {
         }
         mHeaderMap.put(field, value);
     }
+
+    /**
+     * Estimate the number of bytes held by the header values.
+     *
+     * @return the estimated size in bytes
+     */
+    int getEstimatedSize() {
+        int size = 0;
+        for (Object value : mHeaderMap.values()) {
+            if (value instanceof byte[]) {
+                size += ((byte[]) value).length;
+            } else if (value instanceof EncodedStringValue) {
+                size += ((EncodedStringValue) value).getTextString().length;
+            } else if (value instanceof ArrayList) {
+                for (Object element : (ArrayList<?>) value) {
+                    size += ((EncodedStringValue) element).getTextString().length;
+                }
+            }
+            // Every entry also costs a boxed key, a boxed or wrapped value and
+            // a map node.
+            size += HEADER_ENTRY_OVERHEAD;
+        }
+        return size;
+    }
+
+    /**
+     * Value types used by writeTo() and readFrom().
+     */
+    private static final int VALUE_TYPE_OCTET = 0;
+    private static final int VALUE_TYPE_LONG = 1;
+    private static final int VALUE_TYPE_TEXT_STRING = 2;
+    private static final int VALUE_TYPE_ENCODED_STRING = 3;
+    private static final int VALUE_TYPE_ENCODED_STRING_LIST = 4;
+
+    /**
+     * Write all header values in a compact binary form, see readFrom().
+     *
+     * @param out the output to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(mHeaderMap.size());
+        for (Map.Entry<Integer, Object> e : mHeaderMap.entrySet()) {
+            out.writeByte(e.getKey());
+            Object value = e.getValue();
+            if (value instanceof Integer) {
+                out.writeByte(VALUE_TYPE_OCTET);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(VALUE_TYPE_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof byte[]) {
+                out.writeByte(VALUE_TYPE_TEXT_STRING);
+                writeBytes(out, (byte[]) value);
+            } else if (value instanceof EncodedStringValue) {
+                out.writeByte(VALUE_TYPE_ENCODED_STRING);
+                writeEncodedString(out, (EncodedStringValue) value);
+            } else {
+                ArrayList<?> list = (ArrayList<?>) value;
+                out.writeByte(VALUE_TYPE_ENCODED_STRING_LIST);
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    writeEncodedString(out, (EncodedStringValue) element);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read header values written by writeTo(). Values are trusted as they
+     * were validated when first set, so they are not checked again.
+     *
+     * @param in the input to read from
+     * @return the headers
+     * @throws IOException if reading fails or the data is malformed
+     */
+    static PduHeaders readFrom(DataInput in) throws IOException {
+        PduHeaders headers = new PduHeaders();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int field = in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            Object value;
+            switch (type) {
+                case VALUE_TYPE_OCTET:
+                    value = in.readInt();
+                    break;
+                case VALUE_TYPE_LONG:
+                    value = in.readLong();
+                    break;
+                case VALUE_TYPE_TEXT_STRING:
+                    value = readBytes(in);
+                    break;
+                case VALUE_TYPE_ENCODED_STRING:
+                    value = readEncodedString(in);
+                    break;
+                case VALUE_TYPE_ENCODED_STRING_LIST:
+                    int size = in.readInt();
+                    ArrayList<EncodedStringValue> list = new ArrayList<EncodedStringValue>(size);
+                    for (int j = 0; j < size; j++) {
+                        list.add(readEncodedString(in));
+                    }
+                    value = list;
+                    break;
+                default:
+                    throw new IOException("Unknown header value type: " + type);
+            }
+            headers.mHeaderMap.put(field, value);
+        }
+        return headers;
+    }
+
+    static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeEncodedString(DataOutput out, EncodedStringValue value)
+            throws IOException {
+        out.writeInt(value.getCharacterSet());
+        writeBytes(out, value.getTextString());
+    }
+
+    private static EncodedStringValue readEncodedString(DataInput in) throws IOException {
+        int charset = in.readInt();
+        return new EncodedStringValue(charset, readBytes(in));
+    }
 }
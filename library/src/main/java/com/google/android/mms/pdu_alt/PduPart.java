@@ -18,6 +18,9 @@ package com.google.android.mms.pdu_alt;
 
 import android.net.Uri;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -120,6 +123,11 @@ public class PduPart {
 
      private static final String TAG = "PduPart";
 
+     /**
+      * Rough per-entry cost of mPartHeader, used by getEstimatedSize().
+      */
+     private static final int PART_HEADER_ENTRY_OVERHEAD = 64;
+
      /**
       * Empty Constructor.
       */
@@ -409,5 +417,82 @@ public class PduPart {
             return new String(location);
         }
     }
-}
 
+    /**
+     * Estimate the number of bytes held in memory by this part, that is the
+     * part headers plus the part data when it is stored inline.
+     *
+     * @return the estimated size in bytes
+     */
+    public int getEstimatedSize() {
+        int size = getDataLength();
+        for (Object value : mPartHeader.values()) {
+            if (value instanceof byte[]) {
+                size += ((byte[]) value).length;
+            }
+            size += PART_HEADER_ENTRY_OVERHEAD;
+        }
+        return size;
+    }
+
+    /**
+     * Write the part headers, data Uri and inline data in a compact binary
+     * form, see readFrom().
+     *
+     * @param out the output to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(mPartHeader.size());
+        for (Map.Entry<Integer, Object> e : mPartHeader.entrySet()) {
+            out.writeInt(e.getKey());
+            Object value = e.getValue();
+            if (value instanceof Integer) {
+                out.writeBoolean(false);
+                out.writeInt((Integer) value);
+            } else {
+                out.writeBoolean(true);
+                PduHeaders.writeBytes(out, (byte[]) value);
+            }
+        }
+
+        out.writeBoolean(mUri != null);
+        if (mUri != null) {
+            out.writeUTF(mUri.toString());
+        }
+
+        out.writeBoolean(mPartData != null);
+        if (mPartData != null) {
+            PduHeaders.writeBytes(out, mPartData);
+        }
+    }
+
+    /**
+     * Read a part written by writeTo().
+     *
+     * @param in the input to read from
+     * @return the part
+     * @throws IOException if reading fails or the data is malformed
+     */
+    static PduPart readFrom(DataInput in) throws IOException {
+        PduPart part = new PduPart();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int field = in.readInt();
+            if (in.readBoolean()) {
+                part.mPartHeader.put(field, PduHeaders.readBytes(in));
+            } else {
+                part.mPartHeader.put(field, in.readInt());
+            }
+        }
+
+        if (in.readBoolean()) {
+            part.mUri = Uri.parse(in.readUTF());
+        }
+
+        if (in.readBoolean()) {
+            part.mPartData = PduHeaders.readBytes(in);
+        }
+        return part;
+    }
+}
@@ -28,6 +28,7 @@ import android.database.sqlite.SQLiteException;
 import android.drm.DrmManagerClient;
 import android.net.Uri;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -51,14 +52,19 @@ import com.google.android.mms.util_alt.PduCacheEntry;
 import com.google.android.mms.util_alt.SqliteWrapper;
 import com.klinker.android.logger.Log;
 import com.klinker.android.send_message.Settings;
+import com.klinker.android.send_message.ThreadIdCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -76,6 +82,7 @@ public class PduPersister {
     private static final long DUMMY_THREAD_ID = Long.MAX_VALUE;
     private static final int DEFAULT_SUBSCRIPTION = 0;
     private static final int MAX_TEXT_BODY_SIZE = 300 * 1024;
+    private static final int PART_DATA_BUFFER_SIZE = 64 * 1024;
 
     /**
      * The uri of temporary drm objects.
@@ -186,17 +193,121 @@ public class PduPersister {
     private static final int PART_COLUMN_TEXT                = 8;
 
     private static final HashMap<Uri, Integer> MESSAGE_BOX_MAP;
-    // These map are used for convenience in persist() and load().
-    private static final HashMap<Integer, Integer> CHARSET_COLUMN_INDEX_MAP;
-    private static final HashMap<Integer, Integer> ENCODED_STRING_COLUMN_INDEX_MAP;
-    private static final HashMap<Integer, Integer> TEXT_STRING_COLUMN_INDEX_MAP;
-    private static final HashMap<Integer, Integer> OCTET_COLUMN_INDEX_MAP;
-    private static final HashMap<Integer, Integer> LONG_COLUMN_INDEX_MAP;
-    private static final HashMap<Integer, String> CHARSET_COLUMN_NAME_MAP;
-    private static final HashMap<Integer, String> ENCODED_STRING_COLUMN_NAME_MAP;
-    private static final HashMap<Integer, String> TEXT_STRING_COLUMN_NAME_MAP;
-    private static final HashMap<Integer, String> OCTET_COLUMN_NAME_MAP;
-    private static final HashMap<Integer, String> LONG_COLUMN_NAME_MAP;
+
+    // These plans are used for convenience in persist() and load(). Each
+    // group of arrays is indexed in parallel: header field code -> column
+    // index in PDU_PROJECTION and column name in the pdu table.
+
+    // Encoded string fields, together with their charset columns.
+    private static final int[] ENCODED_STRING_FIELDS = new int[] {
+            PduHeaders.RETRIEVE_TEXT,
+            PduHeaders.SUBJECT
+    };
+    private static final int[] ENCODED_STRING_COLUMN_INDEXES = new int[] {
+            PDU_COLUMN_RETRIEVE_TEXT,
+            PDU_COLUMN_SUBJECT
+    };
+    private static final String[] ENCODED_STRING_COLUMN_NAMES = new String[] {
+            Mms.RETRIEVE_TEXT,
+            Mms.SUBJECT
+    };
+    private static final int[] CHARSET_COLUMN_INDEXES = new int[] {
+            PDU_COLUMN_RETRIEVE_TEXT_CHARSET,
+            PDU_COLUMN_SUBJECT_CHARSET
+    };
+    private static final String[] CHARSET_COLUMN_NAMES = new String[] {
+            Mms.RETRIEVE_TEXT_CHARSET,
+            Mms.SUBJECT_CHARSET
+    };
+
+    // Text string fields.
+    private static final int[] TEXT_STRING_FIELDS = new int[] {
+            PduHeaders.CONTENT_LOCATION,
+            PduHeaders.CONTENT_TYPE,
+            PduHeaders.MESSAGE_CLASS,
+            PduHeaders.MESSAGE_ID,
+            PduHeaders.RESPONSE_TEXT,
+            PduHeaders.TRANSACTION_ID
+    };
+    private static final int[] TEXT_STRING_COLUMN_INDEXES = new int[] {
+            PDU_COLUMN_CONTENT_LOCATION,
+            PDU_COLUMN_CONTENT_TYPE,
+            PDU_COLUMN_MESSAGE_CLASS,
+            PDU_COLUMN_MESSAGE_ID,
+            PDU_COLUMN_RESPONSE_TEXT,
+            PDU_COLUMN_TRANSACTION_ID
+    };
+    private static final String[] TEXT_STRING_COLUMN_NAMES = new String[] {
+            Mms.CONTENT_LOCATION,
+            Mms.CONTENT_TYPE,
+            Mms.MESSAGE_CLASS,
+            Mms.MESSAGE_ID,
+            Mms.RESPONSE_TEXT,
+            Mms.TRANSACTION_ID
+    };
+
+    // Octet fields.
+    private static final int[] OCTET_FIELDS = new int[] {
+            PduHeaders.CONTENT_CLASS,
+            PduHeaders.DELIVERY_REPORT,
+            PduHeaders.MESSAGE_TYPE,
+            PduHeaders.MMS_VERSION,
+            PduHeaders.PRIORITY,
+            PduHeaders.READ_REPORT,
+            PduHeaders.READ_STATUS,
+            PduHeaders.REPORT_ALLOWED,
+            PduHeaders.RETRIEVE_STATUS,
+            PduHeaders.STATUS
+    };
+    private static final int[] OCTET_COLUMN_INDEXES = new int[] {
+            PDU_COLUMN_CONTENT_CLASS,
+            PDU_COLUMN_DELIVERY_REPORT,
+            PDU_COLUMN_MESSAGE_TYPE,
+            PDU_COLUMN_MMS_VERSION,
+            PDU_COLUMN_PRIORITY,
+            PDU_COLUMN_READ_REPORT,
+            PDU_COLUMN_READ_STATUS,
+            PDU_COLUMN_REPORT_ALLOWED,
+            PDU_COLUMN_RETRIEVE_STATUS,
+            PDU_COLUMN_STATUS
+    };
+    private static final String[] OCTET_COLUMN_NAMES = new String[] {
+            Mms.CONTENT_CLASS,
+            Mms.DELIVERY_REPORT,
+            Mms.MESSAGE_TYPE,
+            Mms.MMS_VERSION,
+            Mms.PRIORITY,
+            Mms.READ_REPORT,
+            Mms.READ_STATUS,
+            Mms.REPORT_ALLOWED,
+            Mms.RETRIEVE_STATUS,
+            Mms.STATUS
+    };
+
+    // Long fields.
+    private static final int[] LONG_FIELDS = new int[] {
+            PduHeaders.DATE,
+            PduHeaders.DELIVERY_TIME,
+            PduHeaders.EXPIRY,
+            PduHeaders.MESSAGE_SIZE
+    };
+    private static final int[] LONG_COLUMN_INDEXES = new int[] {
+            PDU_COLUMN_DATE,
+            PDU_COLUMN_DELIVERY_TIME,
+            PDU_COLUMN_EXPIRY,
+            PDU_COLUMN_MESSAGE_SIZE
+    };
+    private static final String[] LONG_COLUMN_NAMES = new String[] {
+            Mms.DATE,
+            Mms.DELIVERY_TIME,
+            Mms.EXPIRY,
+            Mms.MESSAGE_SIZE
+    };
+
+    // Upper bound of header columns written by persist(), used to size the
+    // ContentValues up front so it never has to rehash.
+    private static final int HEADER_VALUES_CAPACITY = ENCODED_STRING_FIELDS.length * 2
+            + TEXT_STRING_FIELDS.length + OCTET_FIELDS.length + LONG_FIELDS.length;
 
     static {
         MESSAGE_BOX_MAP = new HashMap<Uri, Integer>();
@@ -205,78 +316,6 @@ public class PduPersister {
         MESSAGE_BOX_MAP.put(Mms.Draft.CONTENT_URI,  Mms.MESSAGE_BOX_DRAFTS);
         MESSAGE_BOX_MAP.put(Mms.Outbox.CONTENT_URI, Mms.MESSAGE_BOX_OUTBOX);
 
-        CHARSET_COLUMN_INDEX_MAP = new HashMap<Integer, Integer>();
-        CHARSET_COLUMN_INDEX_MAP.put(PduHeaders.SUBJECT, PDU_COLUMN_SUBJECT_CHARSET);
-        CHARSET_COLUMN_INDEX_MAP.put(PduHeaders.RETRIEVE_TEXT, PDU_COLUMN_RETRIEVE_TEXT_CHARSET);
-
-        CHARSET_COLUMN_NAME_MAP = new HashMap<Integer, String>();
-        CHARSET_COLUMN_NAME_MAP.put(PduHeaders.SUBJECT, Mms.SUBJECT_CHARSET);
-        CHARSET_COLUMN_NAME_MAP.put(PduHeaders.RETRIEVE_TEXT, Mms.RETRIEVE_TEXT_CHARSET);
-
-        // Encoded string field code -> column index/name map.
-        ENCODED_STRING_COLUMN_INDEX_MAP = new HashMap<Integer, Integer>();
-        ENCODED_STRING_COLUMN_INDEX_MAP.put(PduHeaders.RETRIEVE_TEXT, PDU_COLUMN_RETRIEVE_TEXT);
-        ENCODED_STRING_COLUMN_INDEX_MAP.put(PduHeaders.SUBJECT, PDU_COLUMN_SUBJECT);
-
-        ENCODED_STRING_COLUMN_NAME_MAP = new HashMap<Integer, String>();
-        ENCODED_STRING_COLUMN_NAME_MAP.put(PduHeaders.RETRIEVE_TEXT, Mms.RETRIEVE_TEXT);
-        ENCODED_STRING_COLUMN_NAME_MAP.put(PduHeaders.SUBJECT, Mms.SUBJECT);
-
-        // Text string field code -> column index/name map.
-        TEXT_STRING_COLUMN_INDEX_MAP = new HashMap<Integer, Integer>();
-        TEXT_STRING_COLUMN_INDEX_MAP.put(PduHeaders.CONTENT_LOCATION, PDU_COLUMN_CONTENT_LOCATION);
-        TEXT_STRING_COLUMN_INDEX_MAP.put(PduHeaders.CONTENT_TYPE, PDU_COLUMN_CONTENT_TYPE);
-        TEXT_STRING_COLUMN_INDEX_MAP.put(PduHeaders.MESSAGE_CLASS, PDU_COLUMN_MESSAGE_CLASS);
-        TEXT_STRING_COLUMN_INDEX_MAP.put(PduHeaders.MESSAGE_ID, PDU_COLUMN_MESSAGE_ID);
-        TEXT_STRING_COLUMN_INDEX_MAP.put(PduHeaders.RESPONSE_TEXT, PDU_COLUMN_RESPONSE_TEXT);
-        TEXT_STRING_COLUMN_INDEX_MAP.put(PduHeaders.TRANSACTION_ID, PDU_COLUMN_TRANSACTION_ID);
-
-        TEXT_STRING_COLUMN_NAME_MAP = new HashMap<Integer, String>();
-        TEXT_STRING_COLUMN_NAME_MAP.put(PduHeaders.CONTENT_LOCATION, Mms.CONTENT_LOCATION);
-        TEXT_STRING_COLUMN_NAME_MAP.put(PduHeaders.CONTENT_TYPE, Mms.CONTENT_TYPE);
-        TEXT_STRING_COLUMN_NAME_MAP.put(PduHeaders.MESSAGE_CLASS, Mms.MESSAGE_CLASS);
-        TEXT_STRING_COLUMN_NAME_MAP.put(PduHeaders.MESSAGE_ID, Mms.MESSAGE_ID);
-        TEXT_STRING_COLUMN_NAME_MAP.put(PduHeaders.RESPONSE_TEXT, Mms.RESPONSE_TEXT);
-        TEXT_STRING_COLUMN_NAME_MAP.put(PduHeaders.TRANSACTION_ID, Mms.TRANSACTION_ID);
-
-        // Octet field code -> column index/name map.
-        OCTET_COLUMN_INDEX_MAP = new HashMap<Integer, Integer>();
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.CONTENT_CLASS, PDU_COLUMN_CONTENT_CLASS);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.DELIVERY_REPORT, PDU_COLUMN_DELIVERY_REPORT);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.MESSAGE_TYPE, PDU_COLUMN_MESSAGE_TYPE);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.MMS_VERSION, PDU_COLUMN_MMS_VERSION);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.PRIORITY, PDU_COLUMN_PRIORITY);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.READ_REPORT, PDU_COLUMN_READ_REPORT);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.READ_STATUS, PDU_COLUMN_READ_STATUS);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.REPORT_ALLOWED, PDU_COLUMN_REPORT_ALLOWED);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.RETRIEVE_STATUS, PDU_COLUMN_RETRIEVE_STATUS);
-        OCTET_COLUMN_INDEX_MAP.put(PduHeaders.STATUS, PDU_COLUMN_STATUS);
-
-        OCTET_COLUMN_NAME_MAP = new HashMap<Integer, String>();
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.CONTENT_CLASS, Mms.CONTENT_CLASS);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.DELIVERY_REPORT, Mms.DELIVERY_REPORT);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.MESSAGE_TYPE, Mms.MESSAGE_TYPE);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.MMS_VERSION, Mms.MMS_VERSION);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.PRIORITY, Mms.PRIORITY);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.READ_REPORT, Mms.READ_REPORT);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.READ_STATUS, Mms.READ_STATUS);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.REPORT_ALLOWED, Mms.REPORT_ALLOWED);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.RETRIEVE_STATUS, Mms.RETRIEVE_STATUS);
-        OCTET_COLUMN_NAME_MAP.put(PduHeaders.STATUS, Mms.STATUS);
-
-        // Long field code -> column index/name map.
-        LONG_COLUMN_INDEX_MAP = new HashMap<Integer, Integer>();
-        LONG_COLUMN_INDEX_MAP.put(PduHeaders.DATE, PDU_COLUMN_DATE);
-        LONG_COLUMN_INDEX_MAP.put(PduHeaders.DELIVERY_TIME, PDU_COLUMN_DELIVERY_TIME);
-        LONG_COLUMN_INDEX_MAP.put(PduHeaders.EXPIRY, PDU_COLUMN_EXPIRY);
-        LONG_COLUMN_INDEX_MAP.put(PduHeaders.MESSAGE_SIZE, PDU_COLUMN_MESSAGE_SIZE);
-
-        LONG_COLUMN_NAME_MAP = new HashMap<Integer, String>();
-        LONG_COLUMN_NAME_MAP.put(PduHeaders.DATE, Mms.DATE);
-        LONG_COLUMN_NAME_MAP.put(PduHeaders.DELIVERY_TIME, Mms.DELIVERY_TIME);
-        LONG_COLUMN_NAME_MAP.put(PduHeaders.EXPIRY, Mms.EXPIRY);
-        LONG_COLUMN_NAME_MAP.put(PduHeaders.MESSAGE_SIZE, Mms.MESSAGE_SIZE);
-
         PDU_CACHE_INSTANCE = PduCache.getInstance();
      }
 
@@ -306,11 +345,10 @@ public class PduPersister {
     }
 
     private void setEncodedStringValueToHeaders(
-            Cursor c, int columnIndex,
+            Cursor c, int columnIndex, int charsetColumnIndex,
             PduHeaders headers, int mapColumn) {
         String s = c.getString(columnIndex);
         if ((s != null) && (s.length() > 0)) {
-            int charsetColumnIndex = CHARSET_COLUMN_INDEX_MAP.get(mapColumn);
             int charset = c.getInt(charsetColumnIndex);
             EncodedStringValue value = new EncodedStringValue(
                     charset, getBytes(s));
@@ -345,6 +383,43 @@ public class PduPersister {
         }
     }
 
+    /**
+     * Copy the header fields that have a pdu table column into the given values,
+     * following the precomputed column plans.
+     */
+    private static void putHeaderValues(PduHeaders header, ContentValues values) {
+        for (int i = 0; i < ENCODED_STRING_FIELDS.length; i++) {
+            EncodedStringValue encodedString =
+                    header.getEncodedStringValue(ENCODED_STRING_FIELDS[i]);
+            if (encodedString != null) {
+                values.put(ENCODED_STRING_COLUMN_NAMES[i],
+                        toIsoString(encodedString.getTextString()));
+                values.put(CHARSET_COLUMN_NAMES[i], encodedString.getCharacterSet());
+            }
+        }
+
+        for (int i = 0; i < TEXT_STRING_FIELDS.length; i++) {
+            byte[] text = header.getTextString(TEXT_STRING_FIELDS[i]);
+            if (text != null) {
+                values.put(TEXT_STRING_COLUMN_NAMES[i], toIsoString(text));
+            }
+        }
+
+        for (int i = 0; i < OCTET_FIELDS.length; i++) {
+            int b = header.getOctet(OCTET_FIELDS[i]);
+            if (b != 0) {
+                values.put(OCTET_COLUMN_NAMES[i], b);
+            }
+        }
+
+        for (int i = 0; i < LONG_FIELDS.length; i++) {
+            long l = header.getLongInteger(LONG_FIELDS[i]);
+            if (l != -1L) {
+                values.put(LONG_COLUMN_NAMES[i], l);
+            }
+        }
+    }
+
     private Integer getIntegerFromPartColumn(Cursor c, int columnIndex) {
         if (!c.isNull(columnIndex)) {
             return c.getInt(columnIndex);
@@ -533,6 +608,8 @@ public class PduPersister {
         PduCacheEntry cacheEntry = null;
         int msgBox = 0;
         long threadId = DUMMY_THREAD_ID;
+        long loadStartNanos = 0;
+        boolean fromDisk = false;
         try {
             synchronized(PDU_CACHE_INSTANCE) {
                 if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
@@ -540,6 +617,7 @@ public class PduPersister {
                         Log.v(TAG, "load: " + uri + " blocked by isUpdating()");
                     }
                     try {
+                        PDU_CACHE_INSTANCE.recordWait();
                         PDU_CACHE_INSTANCE.wait();
                     } catch (InterruptedException e) {
                         Log.e(TAG, "load: ", e);
@@ -553,43 +631,55 @@ public class PduPersister {
                 // is currently being updated.
                 PDU_CACHE_INSTANCE.setUpdating(uri, true);
             }
+            loadStartNanos = System.nanoTime();
 
             Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
                     PDU_PROJECTION, null, null, null);
             PduHeaders headers = new PduHeaders();
-            Set<Entry<Integer, Integer>> set;
             long msgId = ContentUris.parseId(uri);
+            boolean diskCached = PDU_CACHE_INSTANCE.hasDiskCache();
+            long stamp = 0;
 
             try {
                 if ((c == null) || (c.getCount() != 1) || !c.moveToFirst()) {
                     throw new MmsException("Bad uri: " + uri);
                 }
 
+                if (diskCached) {
+                    // The row is cheap to read, the addresses and parts are not. A disk
+                    // entry is only used if the row hasn't changed since it was written.
+                    stamp = getRowStamp(c);
+                    PduCacheEntry diskEntry = PDU_CACHE_INSTANCE.loadFromDisk(uri, stamp);
+                    if (diskEntry != null) {
+                        msgBox = diskEntry.getMessageBox();
+                        threadId = diskEntry.getThreadId();
+                        pdu = diskEntry.getPdu();
+                        fromDisk = true;
+                        return pdu;
+                    }
+                }
+
                 msgBox = c.getInt(PDU_COLUMN_MESSAGE_BOX);
                 threadId = c.getLong(PDU_COLUMN_THREAD_ID);
 
-                set = ENCODED_STRING_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
-                    setEncodedStringValueToHeaders(
-                            c, e.getValue(), headers, e.getKey());
+                for (int i = 0; i < ENCODED_STRING_FIELDS.length; i++) {
+                    setEncodedStringValueToHeaders(c, ENCODED_STRING_COLUMN_INDEXES[i],
+                            CHARSET_COLUMN_INDEXES[i], headers, ENCODED_STRING_FIELDS[i]);
                 }
 
-                set = TEXT_STRING_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
+                for (int i = 0; i < TEXT_STRING_FIELDS.length; i++) {
                     setTextStringToHeaders(
-                            c, e.getValue(), headers, e.getKey());
+                            c, TEXT_STRING_COLUMN_INDEXES[i], headers, TEXT_STRING_FIELDS[i]);
                 }
 
-                set = OCTET_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
+                for (int i = 0; i < OCTET_FIELDS.length; i++) {
                     setOctetToHeaders(
-                            c, e.getValue(), headers, e.getKey());
+                            c, OCTET_COLUMN_INDEXES[i], headers, OCTET_FIELDS[i]);
                 }
 
-                set = LONG_COLUMN_INDEX_MAP.entrySet();
-                for (Entry<Integer, Integer> e : set) {
+                for (int i = 0; i < LONG_FIELDS.length; i++) {
                     setLongToHeaders(
-                            c, e.getValue(), headers, e.getKey());
+                            c, LONG_COLUMN_INDEXES[i], headers, LONG_FIELDS[i]);
                 }
             } finally {
                 if (c != null) {
@@ -669,9 +759,16 @@ public class PduPersister {
                 throw new MmsException(
                         "Unrecognized PDU type: " + Integer.toHexString(msgType));
             }
+            if (diskCached) {
+                PDU_CACHE_INSTANCE.storeOnDisk(uri,
+                        new PduCacheEntry(pdu, msgBox, threadId), stamp);
+            }
         } finally {
             synchronized(PDU_CACHE_INSTANCE) {
                 if (pdu != null) {
+                    if (!fromDisk) {
+                        PDU_CACHE_INSTANCE.recordLoad(System.nanoTime() - loadStartNanos);
+                    }
                     assert(PDU_CACHE_INSTANCE.get(uri) == null);
                     // Update the cache entry with the real info
                     cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
@@ -684,6 +781,25 @@ public class PduPersister {
         return pdu;
     }
 
+    /**
+     * Hash every column of a PDU_PROJECTION row, so that any change made to
+     * the row, or a new message reusing its id, gives a different stamp.
+     */
+    private static long getRowStamp(Cursor c) {
+        long hash = 0xcbf29ce484222325L; // 64-bit FNV-1a
+        for (int i = 0; i < PDU_PROJECTION.length; i++) {
+            String value = c.getString(i);
+            if (value != null) {
+                for (int j = 0; j < value.length(); j++) {
+                    hash = (hash ^ value.charAt(j)) * 0x100000001b3L;
+                }
+            }
+            // Keep null apart from "" and column boundaries apart from the values.
+            hash = (hash ^ (value != null ? 0x1f : 0x1e)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
     private void persistAddress(
             long msgId, int type, EncodedStringValue[] array) {
         ContentValues values = new ContentValues(3);
@@ -871,6 +987,10 @@ public class PduPersister {
                                 " can not be converted.");
                     }
                 }
+                // Plain media copied from another file can bypass the heap entirely.
+                if (!isDrm && data == null && transferPartData(part, uri, preOpenedFiles)) {
+                    return;
+                }
                 // uri can look like:
                 // content://mms/part/98
                 os = mContentResolver.openOutputStream(uri);
@@ -893,7 +1013,7 @@ public class PduPersister {
                         Log.v(TAG, "Saving data to: " + uri);
                     }
 
-                    byte[] buffer = new byte[8192];
+                    byte[] buffer = new byte[PART_DATA_BUFFER_SIZE];
                     for (int len = 0; (len = is.read(buffer)) != -1; ) {
                         if (!isDrm) {
                             os.write(buffer, 0, len);
@@ -958,6 +1078,123 @@ public class PduPersister {
         }
     }
 
+    /**
+     * Copy the data of a part from its dataUri into the part file using
+     * {@link FileChannel#transferTo}, so that large media is moved by the kernel
+     * instead of through a heap buffer. This is only possible when both sides
+     * are backed by regular files; pipes and sockets handed out by some
+     * providers are left to the stream copy in persistData().
+     *
+     * @param part The PDU part which contains the dataUri to copy from.
+     * @param uri The URI of the part.
+     * @param preOpenedFiles if not null, a map of preopened InputStreams for the parts.
+     * @return true if the data has been copied, false if nothing has been
+     *         written and the caller should fall back to streams.
+     * @throws IOException Error occurred while copying the data.
+     */
+    private boolean transferPartData(PduPart part, Uri uri,
+            HashMap<Uri, InputStream> preOpenedFiles) throws IOException {
+        Uri dataUri = part.getDataUri();
+        if ((dataUri == null) || (dataUri == uri)) {
+            return false;
+        }
+
+        InputStream preOpened = null;
+        if (preOpenedFiles != null) {
+            preOpened = preOpenedFiles.get(dataUri);
+            if ((preOpened != null) && !(preOpened instanceof FileInputStream)) {
+                return false;
+            }
+        }
+
+        ParcelFileDescriptor inPfd = null;
+        ParcelFileDescriptor outPfd = null;
+        FileInputStream in = (FileInputStream) preOpened;
+        FileOutputStream out = null;
+        boolean started = false;
+        try {
+            if (in == null) {
+                inPfd = mContentResolver.openFileDescriptor(dataUri, "r");
+                if ((inPfd == null) || (inPfd.getStatSize() < 0)) {
+                    return false;
+                }
+                in = new FileInputStream(inPfd.getFileDescriptor());
+            }
+
+            outPfd = mContentResolver.openFileDescriptor(uri, "w");
+            if ((outPfd == null) || (outPfd.getStatSize() < 0)) {
+                return false;
+            }
+            out = new FileOutputStream(outPfd.getFileDescriptor());
+
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "Transferring data to: " + uri);
+            }
+
+            started = true;
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            long position = src.position();
+            long size = src.size();
+            while (position < size) {
+                long count = src.transferTo(position, size - position, dst);
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+            }
+            if (position < size) {
+                // transferTo() may give up early on some file systems, copy the rest by hand
+                ByteBuffer buffer = ByteBuffer.allocate(PART_DATA_BUFFER_SIZE);
+                while (position < size) {
+                    buffer.clear();
+                    int count = src.read(buffer, position);
+                    if (count < 0) {
+                        throw new IOException("Part data ended at " + position + " of "
+                                + size + " bytes: " + dataUri);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        dst.write(buffer);
+                    }
+                    position += count;
+                }
+            }
+            return true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "IOException while closing: " + out, e);
+                } // Ignore
+            }
+            if (outPfd != null) {
+                try {
+                    outPfd.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "IOException while closing: " + outPfd, e);
+                } // Ignore
+            }
+            // A pre-opened stream is still needed by the fallback path, so it is
+            // only closed here once the transfer has started.
+            if ((in != null) && ((inPfd != null) || started)) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "IOException while closing: " + in, e);
+                } // Ignore
+            }
+            if (inPfd != null) {
+                try {
+                    inPfd.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "IOException while closing: " + inPfd, e);
+                } // Ignore
+            }
+        }
+    }
+
     /**
      * This method expects uri in the following format
      *     content://media/<table_name>/<row_index> (or)
@@ -1031,6 +1268,7 @@ public class PduPersister {
                     Log.v(TAG, "updateHeaders: " + uri + " blocked by isUpdating()");
                 }
                 try {
+                    PDU_CACHE_INSTANCE.recordWait();
                     PDU_CACHE_INSTANCE.wait();
                 } catch (InterruptedException e) {
                     Log.e(TAG, "updateHeaders: ", e);
@@ -1120,7 +1358,7 @@ public class PduPersister {
             }
         }
         if (!recipients.isEmpty()) {
-            long threadId = Threads.getOrCreateThreadId(mContext, recipients);
+            long threadId = getOrCreateThreadId(recipients);
             values.put(Mms.THREAD_ID, threadId);
         }
 
@@ -1199,6 +1437,7 @@ public class PduPersister {
                         Log.v(TAG, "updateParts: " + uri + " blocked by isUpdating()");
                     }
                     try {
+                        PDU_CACHE_INSTANCE.recordWait();
                         PDU_CACHE_INSTANCE.wait();
                     } catch (InterruptedException e) {
                         Log.e(TAG, "updateParts: ", e);
@@ -1256,6 +1495,7 @@ public class PduPersister {
                 updatePart(e.getKey(), e.getValue(), preOpenedFiles);
             }
         } finally {
+            PDU_CACHE_INSTANCE.purgeFromDisk(uri);
             synchronized(PDU_CACHE_INSTANCE) {
                 PDU_CACHE_INSTANCE.setUpdating(uri, false);
                 PDU_CACHE_INSTANCE.notifyAll();
@@ -1313,6 +1553,7 @@ public class PduPersister {
                     Log.v(TAG, "persist: " + uri + " blocked by isUpdating()");
                 }
                 try {
+                    PDU_CACHE_INSTANCE.recordWait();
                     PDU_CACHE_INSTANCE.wait();
                 } catch (InterruptedException e) {
                     Log.e(TAG, "persist1: ", e);
@@ -1323,43 +1564,9 @@ public class PduPersister {
 
         PduHeaders header = pdu.getPduHeaders();
         PduBody body = null;
-        ContentValues values = new ContentValues();
-        Set<Entry<Integer, String>> set;
-
-        set = ENCODED_STRING_COLUMN_NAME_MAP.entrySet();
-        for (Entry<Integer, String> e : set) {
-            int field = e.getKey();
-            EncodedStringValue encodedString = header.getEncodedStringValue(field);
-            if (encodedString != null) {
-                String charsetColumn = CHARSET_COLUMN_NAME_MAP.get(field);
-                values.put(e.getValue(), toIsoString(encodedString.getTextString()));
-                values.put(charsetColumn, encodedString.getCharacterSet());
-            }
-        }
-
-        set = TEXT_STRING_COLUMN_NAME_MAP.entrySet();
-        for (Entry<Integer, String> e : set){
-            byte[] text = header.getTextString(e.getKey());
-            if (text != null) {
-                values.put(e.getValue(), toIsoString(text));
-            }
-        }
-
-        set = OCTET_COLUMN_NAME_MAP.entrySet();
-        for (Entry<Integer, String> e : set){
-            int b = header.getOctet(e.getKey());
-            if (b != 0) {
-                values.put(e.getValue(), b);
-            }
-        }
-
-        set = LONG_COLUMN_NAME_MAP.entrySet();
-        for (Entry<Integer, String> e : set){
-            long l = header.getLongInteger(e.getKey());
-            if (l != -1L) {
-                values.put(e.getValue(), l);
-            }
-        }
+        // Leave room for the thread id, message size and subscription id.
+        ContentValues values = new ContentValues(HEADER_VALUES_CAPACITY + 3);
+        putHeaderValues(header, values);
 
         HashMap<Integer, EncodedStringValue[]> addressMap =
                 new HashMap<Integer, EncodedStringValue[]>(ADDRESS_FIELDS.length);
@@ -1415,7 +1622,7 @@ public class PduPersister {
             if (createThreadId && !recipients.isEmpty()) {
                 // Given all the recipients associated with this message, find (or create) the
                 // correct thread.
-                threadId = Threads.getOrCreateThreadId(mContext, recipients);
+                threadId = getOrCreateThreadId(recipients);
             }
             values.put(Mms.THREAD_ID, threadId);
         }
@@ -1545,6 +1752,20 @@ public class PduPersister {
         }
     }
 
+    /**
+     * Find or create the thread of the given recipients, going through the
+     * shared thread id cache first.
+     */
+    private long getOrCreateThreadId(Set<String> recipients) {
+        ThreadIdCache cache = ThreadIdCache.getInstance(mContext);
+        long threadId = cache.get(mContext, recipients);
+        if (threadId == -1) {
+            threadId = Threads.getOrCreateThreadId(mContext, recipients);
+            cache.put(recipients, threadId);
+        }
+        return threadId;
+    }
+
     /**
      * Move a PDU object from one location to another.
      *
@@ -1576,6 +1797,7 @@ public class PduPersister {
         ContentValues values = new ContentValues(1);
         values.put(Mms.MESSAGE_BOX, msgBox);
         SqliteWrapper.update(mContext, mContentResolver, from, values, null, null);
+        PDU_CACHE_INSTANCE.purgeFromDisk(from);
         return ContentUris.withAppendedId(to, msgId);
     }
 
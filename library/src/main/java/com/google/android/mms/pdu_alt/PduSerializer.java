@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu_alt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary form of the PDUs built by {@link PduPersister#load}, used to
+ * keep them in a persistent cache. It is not a wire format: the layout may
+ * change between library versions, which {@link #VERSION} guards against.
+ */
+public final class PduSerializer {
+    private static final int VERSION = 1;
+
+    private PduSerializer() {
+    }
+
+    /**
+     * @param pdu The PDU to serialize.
+     * @return The serialized PDU.
+     * @throws IOException if the PDU cannot be serialized.
+     */
+    public static byte[] serialize(GenericPdu pdu) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        pdu.getPduHeaders().writeTo(out);
+
+        PduBody body = null;
+        if (pdu instanceof MultimediaMessagePdu) {
+            body = ((MultimediaMessagePdu) pdu).getBody();
+        }
+        out.writeBoolean(body != null);
+        if (body != null) {
+            int partsNum = body.getPartsNum();
+            out.writeInt(partsNum);
+            for (int i = 0; i < partsNum; i++) {
+                body.getPart(i).writeTo(out);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param data The buffer holding a PDU written by {@link #serialize}.
+     * @param offset The offset of the PDU in the buffer.
+     * @param length The length of the PDU.
+     * @return The PDU.
+     * @throws IOException if the data is malformed or written by another version.
+     */
+    public static GenericPdu deserialize(byte[] data, int offset, int length)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data, offset, length));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+        PduHeaders headers = PduHeaders.readFrom(in);
+
+        PduBody body = null;
+        if (in.readBoolean()) {
+            body = new PduBody();
+            int partsNum = in.readInt();
+            for (int i = 0; i < partsNum; i++) {
+                body.addPart(PduPart.readFrom(in));
+            }
+        }
+
+        int msgType = headers.getOctet(PduHeaders.MESSAGE_TYPE);
+        switch (msgType) {
+            case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
+                return new NotificationInd(headers);
+            case PduHeaders.MESSAGE_TYPE_DELIVERY_IND:
+                return new DeliveryInd(headers);
+            case PduHeaders.MESSAGE_TYPE_READ_ORIG_IND:
+                return new ReadOrigInd(headers);
+            case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
+                return new RetrieveConf(headers, body != null ? body : new PduBody());
+            case PduHeaders.MESSAGE_TYPE_SEND_REQ:
+                return new SendReq(headers, body != null ? body : new PduBody());
+            case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
+                return new AcknowledgeInd(headers);
+            case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
+                return new NotifyRespInd(headers);
+            case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
+                return new ReadRecInd(headers);
+            default:
+                throw new IOException("Unsupported PDU type: " + Integer.toHexString(msgType));
+        }
+    }
+}
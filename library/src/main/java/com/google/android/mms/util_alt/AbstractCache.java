@@ -18,39 +18,81 @@ package com.google.android.mms.util_alt;
 
 import com.klinker.android.logger.Log;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Bounded cache with lock-free reads. Lookups only touch the concurrent map
+ * and stamp the entry with a logical access time; puts, purges and evictions
+ * are serialized on the cache instance, which subclasses also use to guard
+ * any index they keep on top of it.
+ */
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
     private static final int MAX_CACHED_ITEMS  = 500;
+    // How many of the least recently used entries one scan of the map collects.
+    private static final int EVICTION_BATCH = 32;
+
+    private final ConcurrentHashMap<K, CacheEntry<V>> mCacheMap;
+
+    // Logical clock used to order entries by their last access.
+    private final AtomicLong mAccessClock;
+
+    // The least recently used entries as of the last scan, eldest first.
+    // Guarded by the cache lock.
+    private final ArrayDeque<Candidate<K, V>> mEvictionCandidates =
+            new ArrayDeque<Candidate<K, V>>();
 
-    private final HashMap<K, CacheEntry<V>> mCacheMap;
+    // Sum of weightOf() over all cached entries, bounded by mMaxWeight.
+    private volatile long mWeight;
+    private volatile long mMaxWeight = Long.MAX_VALUE;
+
+    private final StripedCounter mHitCount = new StripedCounter();
+    private final StripedCounter mMissCount = new StripedCounter();
+    private final StripedCounter mLoadCount = new StripedCounter();
+    private final StripedCounter mLoadTimeNanos = new StripedCounter();
+    private final StripedCounter mEvictionCount = new StripedCounter();
+    private final StripedCounter mRefusedPutCount = new StripedCounter();
+    private final StripedCounter mWaitCount = new StripedCounter();
 
     protected AbstractCache() {
-        mCacheMap = new HashMap<K, CacheEntry<V>>();
+        mCacheMap = new ConcurrentHashMap<K, CacheEntry<V>>();
+        mAccessClock = new AtomicLong();
     }
 
-    public boolean put(K key, V value) {
+    public synchronized boolean put(K key, V value) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO Should remove the oldest or least hit cached entry
-            // and then cache the new one.
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
+        if (key != null) {
+            int weight = weightOf(key, value);
+            if (weight > mMaxWeight) {
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "Failed! " + key + " weighs " + weight
+                            + ", more than the whole cache.");
+                }
+                mRefusedPutCount.increment();
+                return false;
             }
-            return false;
-        }
 
-        if (key != null) {
-            CacheEntry<V> cacheEntry = new CacheEntry<V>();
-            cacheEntry.value = value;
-            mCacheMap.put(key, cacheEntry);
+            CacheEntry<V> cacheEntry = new CacheEntry<V>(value, weight);
+            cacheEntry.lastAccess = mAccessClock.incrementAndGet();
+            CacheEntry<V> previous = mCacheMap.put(key, cacheEntry);
+            long total = mWeight + weight;
+            if (previous != null) {
+                total -= previous.weight;
+            }
+            mWeight = total;
+
+            trimToWeight(mMaxWeight);
 
             if (LOCAL_LOGV) {
                 Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
@@ -68,22 +110,29 @@ public abstract class AbstractCache<K, V> {
         if (key != null) {
             CacheEntry<V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
+                // Both stamps are best effort, racing readers may lose updates.
                 cacheEntry.hit++;
+                cacheEntry.lastAccess = mAccessClock.incrementAndGet();
                 if (LOCAL_LOGV) {
                     Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
                 }
+                mHitCount.increment();
                 return cacheEntry.value;
             }
+            mMissCount.increment();
         }
         return null;
     }
 
-    public V purge(K key) {
+    public synchronized V purge(K key) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to purge " + key);
         }
 
-        CacheEntry<V> v = mCacheMap.remove(key);
+        CacheEntry<V> v = key != null ? mCacheMap.remove(key) : null;
+        if (v != null) {
+            mWeight -= v.weight;
+        }
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -92,20 +141,209 @@ public abstract class AbstractCache<K, V> {
         return v != null ? v.value : null;
     }
 
-    public void purgeAll() {
+    public synchronized void purgeAll() {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Purging cache, " + mCacheMap.size()
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mEvictionCandidates.clear();
+        mWeight = 0;
     }
 
     public int size() {
         return mCacheMap.size();
     }
 
+    /**
+     * Record that a value missing from the cache has been loaded from storage.
+     *
+     * @param loadTimeNanos The time the load took.
+     */
+    public void recordLoad(long loadTimeNanos) {
+        mLoadCount.increment();
+        mLoadTimeNanos.add(loadTimeNanos);
+    }
+
+    /**
+     * Record that a caller had to wait for an entry being updated by another
+     * thread.
+     */
+    public void recordWait() {
+        mWaitCount.increment();
+    }
+
+    /**
+     * @return A snapshot of the statistics collected since creation or the
+     *         last {@link #resetStats()}. Counters are read one after the other
+     *         while the cache is in use, so they may be slightly inconsistent.
+     */
+    public CacheStats getStats() {
+        return new CacheStats(mHitCount.sum(), mMissCount.sum(), mLoadCount.sum(),
+                mLoadTimeNanos.sum(), mEvictionCount.sum(), mRefusedPutCount.sum(),
+                mWaitCount.sum(), mCacheMap.size(), mWeight);
+    }
+
+    public void resetStats() {
+        mHitCount.reset();
+        mMissCount.reset();
+        mLoadCount.reset();
+        mLoadTimeNanos.reset();
+        mEvictionCount.reset();
+        mRefusedPutCount.reset();
+        mWaitCount.reset();
+    }
+
+    /**
+     * @return The sum of the weights of all cached entries.
+     */
+    public long getWeight() {
+        return mWeight;
+    }
+
+    public long getMaxWeight() {
+        return mMaxWeight;
+    }
+
+    /**
+     * Set the upper bound of the sum of entry weights, evicting the least
+     * recently used entries if the cache is already heavier than that.
+     *
+     * @param maxWeight The new bound, see {@link #weightOf}.
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+        mMaxWeight = maxWeight;
+        trimToWeight(maxWeight);
+    }
+
+    /**
+     * Evict the least recently used entries until both the item count and the
+     * total weight are within bounds. The bound is not remembered, so the
+     * cache may grow back to its maximum weight afterwards.
+     *
+     * @param maxWeight The weight to shrink the cache to.
+     */
+    public synchronized void trimToWeight(long maxWeight) {
+        while ((mCacheMap.size() > MAX_CACHED_ITEMS) || (mWeight > maxWeight)) {
+            if (!evictEldest()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Weight of an entry, in whatever unit the max weight is expressed. The
+     * default weighs nothing, so only the item count bounds the cache.
+     *
+     * @param key The key of the entry.
+     * @param value The value of the entry.
+     * @return The weight of the entry.
+     */
+    protected int weightOf(K key, V value) {
+        return 0;
+    }
+
+    /**
+     * Called after an entry has been dropped to make room for a new one, so
+     * that subclasses can update any index they keep on top of the cache.
+     * It runs with the cache lock held.
+     *
+     * @param key The key of the evicted entry.
+     * @param value The value of the evicted entry.
+     */
+    protected void onEntryEvicted(K key, V value) {
+    }
+
+    private boolean evictEldest() {
+        // Reads stay free of any shared list to reorder. Instead one scan of the
+        // map collects a batch of the eldest entries, which the following
+        // evictions use up, so a full cache doesn't scan on every put.
+        Candidate<K, V> eldest = null;
+        boolean scanned = false;
+        while (eldest == null) {
+            Candidate<K, V> candidate = mEvictionCandidates.pollFirst();
+            if (candidate == null) {
+                if (scanned || !collectEvictionCandidates()) {
+                    return false;
+                }
+                scanned = true;
+                continue;
+            }
+            if (!scanned && (candidate.entry.lastAccess != candidate.lastAccess)) {
+                // Used since the last scan, so it may no longer be among the eldest.
+                continue;
+            }
+            if (mCacheMap.remove(candidate.key, candidate.entry)) {
+                eldest = candidate;
+            }
+        }
+
+        K key = eldest.key;
+        CacheEntry<V> entry = eldest.entry;
+        mWeight -= entry.weight;
+        mEvictionCount.increment();
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Size limitation reached, evicted " + key
+                    + " after " + entry.hit + " hits.");
+        }
+        onEntryEvicted(key, entry.value);
+        return true;
+    }
+
+    /**
+     * Fill mEvictionCandidates with the eldest entries in the map, eldest first.
+     *
+     * @return false if the cache is empty.
+     */
+    private boolean collectEvictionCandidates() {
+        // Max-heap on the access time, so the most recent of the batch is dropped first.
+        PriorityQueue<Candidate<K, V>> batch = new PriorityQueue<Candidate<K, V>>(
+                EVICTION_BATCH, new Comparator<Candidate<K, V>>() {
+                    @Override
+                    public int compare(Candidate<K, V> a, Candidate<K, V> b) {
+                        return a.lastAccess < b.lastAccess ? 1
+                                : (a.lastAccess == b.lastAccess ? 0 : -1);
+                    }
+                });
+        for (Map.Entry<K, CacheEntry<V>> e : mCacheMap.entrySet()) {
+            CacheEntry<V> entry = e.getValue();
+            long lastAccess = entry.lastAccess;
+            if (batch.size() < EVICTION_BATCH) {
+                batch.add(new Candidate<K, V>(e.getKey(), entry, lastAccess));
+            } else if (lastAccess < batch.peek().lastAccess) {
+                batch.poll();
+                batch.add(new Candidate<K, V>(e.getKey(), entry, lastAccess));
+            }
+        }
+        while (!batch.isEmpty()) {
+            mEvictionCandidates.addFirst(batch.poll());
+        }
+        return !mEvictionCandidates.isEmpty();
+    }
+
+    private static class Candidate<K, V> {
+        final K key;
+        final CacheEntry<V> entry;
+        // The entry's access time when it was collected.
+        final long lastAccess;
+
+        Candidate(K key, CacheEntry<V> entry, long lastAccess) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = lastAccess;
+        }
+    }
+
     private static class CacheEntry<V> {
-        int hit;
-        V value;
+        final V value;
+        final int weight;
+        volatile int hit;
+        volatile long lastAccess;
+
+        CacheEntry(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
     }
 }
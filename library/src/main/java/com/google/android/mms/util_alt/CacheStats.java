@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+/**
+ * Snapshot of the statistics collected by an {@link AbstractCache}.
+ */
+public final class CacheStats {
+    private final long mHitCount;
+    private final long mMissCount;
+    private final long mLoadCount;
+    private final long mTotalLoadTimeNanos;
+    private final long mEvictionCount;
+    private final long mRefusedPutCount;
+    private final long mWaitCount;
+    private final int mItemCount;
+    private final long mWeight;
+
+    CacheStats(long hitCount, long missCount, long loadCount, long totalLoadTimeNanos,
+            long evictionCount, long refusedPutCount, long waitCount, int itemCount,
+            long weight) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mLoadCount = loadCount;
+        mTotalLoadTimeNanos = totalLoadTimeNanos;
+        mEvictionCount = evictionCount;
+        mRefusedPutCount = refusedPutCount;
+        mWaitCount = waitCount;
+        mItemCount = itemCount;
+        mWeight = weight;
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return The ratio of hits to lookups, or 1 if there was no lookup.
+     */
+    public double getHitRate() {
+        long requests = mHitCount + mMissCount;
+        return requests == 0 ? 1.0 : (double) mHitCount / requests;
+    }
+
+    /**
+     * @return The number of values loaded from storage after a miss.
+     */
+    public long getLoadCount() {
+        return mLoadCount;
+    }
+
+    public long getTotalLoadTimeNanos() {
+        return mTotalLoadTimeNanos;
+    }
+
+    public long getAverageLoadTimeNanos() {
+        return mLoadCount == 0 ? 0 : mTotalLoadTimeNanos / mLoadCount;
+    }
+
+    /**
+     * @return The number of entries dropped to respect the size limits.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return The number of puts rejected because the value could not fit.
+     */
+    public long getRefusedPutCount() {
+        return mRefusedPutCount;
+    }
+
+    /**
+     * @return The number of times a caller waited for an entry being updated.
+     */
+    public long getWaitCount() {
+        return mWaitCount;
+    }
+
+    public int getItemCount() {
+        return mItemCount;
+    }
+
+    /**
+     * @return The total weight of the cached entries, in bytes for PduCache.
+     */
+    public long getWeight() {
+        return mWeight;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + mHitCount
+                + ", misses=" + mMissCount
+                + ", loads=" + mLoadCount
+                + ", totalLoadTimeNanos=" + mTotalLoadTimeNanos
+                + ", evictions=" + mEvictionCount
+                + ", refusedPuts=" + mRefusedPutCount
+                + ", waits=" + mWaitCount
+                + ", items=" + mItemCount
+                + ", weight=" + mWeight + "}";
+    }
+}
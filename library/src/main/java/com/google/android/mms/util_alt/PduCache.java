@@ -16,20 +16,37 @@
 
 package com.google.android.mms.util_alt;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentUris;
 import android.content.UriMatcher;
 import android.net.Uri;
 import android.provider.Telephony.Mms;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
 import com.klinker.android.logger.Log;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Cache of loaded PDUs, bounded both by item count and by the estimated bytes
+ * the PDUs hold. Apps can shrink it under memory pressure by forwarding
+ * {@link ComponentCallbacks2#onTrimMemory} levels to {@link #onTrimMemory}.
+ *
+ * <p>Lookups and {@link #isUpdating} never block. Writes are serialized on the
+ * instance together with the thread and message box indexes, which callers
+ * may also use to wait for an entry that is being updated.
+ */
 public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final String TAG = "PduCache";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
+    private static final long DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
     private static final int MMS_ALL             = 0;
     private static final int MMS_ALL_ID          = 1;
     private static final int MMS_INBOX           = 2;
@@ -70,14 +87,20 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         MATCH_TO_MSGBOX_ID_MAP.put(MMS_OUTBOX, Mms.MESSAGE_BOX_OUTBOX);
     }
 
-    private final HashMap<Integer, HashSet<Uri>> mMessageBoxes;
-    private final HashMap<Long, HashSet<Uri>> mThreads;
-    private final HashSet<Uri> mUpdating;
+    // Guarded by this.
+    private final SparseArray<HashSet<Uri>> mMessageBoxes;
+    private final LongSparseArray<HashSet<Uri>> mThreads;
+
+    private final Set<Uri> mUpdating;
+
+    private volatile PduDiskCache mDiskCache;
+    private final StripedCounter mDiskHitCount = new StripedCounter();
 
     private PduCache() {
-        mMessageBoxes = new HashMap<Integer, HashSet<Uri>>();
-        mThreads = new HashMap<Long, HashSet<Uri>>();
-        mUpdating = new HashSet<Uri>();
+        mMessageBoxes = new SparseArray<HashSet<Uri>>();
+        mThreads = new LongSparseArray<HashSet<Uri>>();
+        mUpdating = Collections.newSetFromMap(new ConcurrentHashMap<Uri, Boolean>());
+        setMaxWeight(DEFAULT_MAX_BYTES);
     }
 
     synchronized public static final PduCache getInstance() {
@@ -92,31 +115,30 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     @Override
     synchronized public boolean put(Uri uri, PduCacheEntry entry) {
-        int msgBoxId = entry.getMessageBox();
-        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
-        if (msgBox == null) {
-            msgBox = new HashSet<Uri>();
-            mMessageBoxes.put(msgBoxId, msgBox);
-        }
-
-        long threadId = entry.getThreadId();
-        HashSet<Uri> thread = mThreads.get(threadId);
-        if (thread == null) {
-            thread = new HashSet<Uri>();
-            mThreads.put(threadId, thread);
-        }
-
         Uri finalKey = normalizeKey(uri);
         boolean result = super.put(finalKey, entry);
         if (result) {
+            int msgBoxId = entry.getMessageBox();
+            HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
+            if (msgBox == null) {
+                msgBox = new HashSet<Uri>();
+                mMessageBoxes.put(msgBoxId, msgBox);
+            }
             msgBox.add(finalKey);
+
+            long threadId = entry.getThreadId();
+            HashSet<Uri> thread = mThreads.get(threadId);
+            if (thread == null) {
+                thread = new HashSet<Uri>();
+                mThreads.put(threadId, thread);
+            }
             thread.add(finalKey);
         }
         setUpdating(uri, false);
         return result;
     }
 
-    synchronized public void setUpdating(Uri uri, boolean updating) {
+    public void setUpdating(Uri uri, boolean updating) {
         if (updating) {
             mUpdating.add(uri);
         } else {
@@ -124,7 +146,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         }
     }
 
-    synchronized public boolean isUpdating(Uri uri) {
+    public boolean isUpdating(Uri uri) {
         return mUpdating.contains(uri);
     }
 
@@ -144,6 +166,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             case MMS_ALL:
             case MMS_CONVERSATION:
                 purgeAll();
+                if (mDiskCache != null) {
+                    mDiskCache.clear();
+                }
                 return null;
             case MMS_INBOX:
             case MMS_SENT:
@@ -161,6 +186,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     private PduCacheEntry purgeSingleEntry(Uri key) {
         mUpdating.remove(key);
+        if (mDiskCache != null) {
+            mDiskCache.remove(ContentUris.parseId(key));
+        }
         PduCacheEntry entry = super.purge(key);
         if (entry != null) {
             removeFromThreads(key, entry);
@@ -170,6 +198,113 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return null;
     }
 
+    /**
+     * Enable, or disable with null, the persistent tier of this cache. It is
+     * invalidated by {@link #purge} together with the in-memory entries, and
+     * its entries are checked against the provider row before they are used.
+     */
+    public void setDiskCache(PduDiskCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    public boolean hasDiskCache() {
+        return mDiskCache != null;
+    }
+
+    /**
+     * @param uri The Uri of the message.
+     * @param stamp The stamp of the message's provider row as it is now.
+     * @return The entry found in the persistent tier, or null.
+     */
+    public PduCacheEntry loadFromDisk(Uri uri, long stamp) {
+        PduDiskCache diskCache = mDiskCache;
+        Uri key = normalizeKey(uri);
+        if ((diskCache == null) || (key == null)) {
+            return null;
+        }
+        PduCacheEntry entry = diskCache.get(ContentUris.parseId(key), stamp);
+        if (entry != null) {
+            mDiskHitCount.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Write an entry loaded from the provider to the persistent tier.
+     *
+     * @param uri The Uri of the message.
+     * @param entry The entry to store.
+     * @param stamp The stamp of the provider row the entry was loaded from.
+     */
+    public void storeOnDisk(Uri uri, PduCacheEntry entry, long stamp) {
+        PduDiskCache diskCache = mDiskCache;
+        Uri key = normalizeKey(uri);
+        if ((diskCache != null) && (key != null)) {
+            diskCache.put(ContentUris.parseId(key), entry, stamp);
+        }
+    }
+
+    /**
+     * @return How many loads were served by the persistent tier, which are
+     *         not counted as loads in {@link #getStats()}.
+     */
+    public long getDiskHitCount() {
+        return mDiskHitCount.sum();
+    }
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        mDiskHitCount.reset();
+    }
+
+    /**
+     * Drop a message from the persistent tier only, for changes that the
+     * in-memory entry already reflects or tolerates.
+     *
+     * @param uri The Uri of the message.
+     */
+    public void purgeFromDisk(Uri uri) {
+        PduDiskCache diskCache = mDiskCache;
+        Uri key = normalizeKey(uri);
+        if ((diskCache != null) && (key != null)) {
+            diskCache.remove(ContentUris.parseId(key));
+        }
+    }
+
+    @Override
+    protected int weightOf(Uri uri, PduCacheEntry entry) {
+        return entry.getEstimatedSize();
+    }
+
+    /**
+     * Release cached PDUs in proportion to the memory pressure reported to the
+     * host app through {@link ComponentCallbacks2#onTrimMemory(int)}.
+     *
+     * @param level The trim level passed to onTrimMemory().
+     */
+    synchronized public void onTrimMemory(int level) {
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "onTrimMemory(" + level + "), " + getWeight() + " bytes cached.");
+        }
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            purgeAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToWeight(getWeight() / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToWeight(getWeight() / 2);
+        }
+    }
+
+    @Override
+    protected void onEntryEvicted(Uri key, PduCacheEntry entry) {
+        removeFromThreads(key, entry);
+        removeFromMessageBoxes(key, entry);
+    }
+
     @Override
     synchronized public void purgeAll() {
         super.purgeAll();
@@ -214,7 +349,11 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         }
 
         if (msgBoxId != null) {
-            HashSet<Uri> msgBox = mMessageBoxes.remove(msgBoxId);
+            if (mDiskCache != null) {
+                mDiskCache.removeByMessageBox(msgBoxId);
+            }
+            HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
+            mMessageBoxes.remove(msgBoxId);
             if (msgBox != null) {
                 for (Uri key : msgBox) {
                     mUpdating.remove(key);
@@ -228,9 +367,13 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private void removeFromThreads(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> thread = mThreads.get(entry.getThreadId());
+        long threadId = entry.getThreadId();
+        HashSet<Uri> thread = mThreads.get(threadId);
         if (thread != null) {
             thread.remove(key);
+            if (thread.isEmpty()) {
+                mThreads.remove(threadId);
+            }
         }
     }
 
@@ -239,7 +382,11 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             Log.v(TAG, "Purge cache in thread: " + threadId);
         }
 
-        HashSet<Uri> thread = mThreads.remove(threadId);
+        if (mDiskCache != null) {
+            mDiskCache.removeByThreadId(threadId);
+        }
+        HashSet<Uri> thread = mThreads.get(threadId);
+        mThreads.remove(threadId);
         if (thread != null) {
             for (Uri key : thread) {
                 mUpdating.remove(key);
@@ -252,9 +399,13 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
+        int msgBoxId = entry.getMessageBox();
+        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
         if (msgBox != null) {
             msgBox.remove(key);
+            if (msgBox.isEmpty()) {
+                mMessageBoxes.remove(msgBoxId);
+            }
         }
     }
 }
@@ -22,11 +22,13 @@ public final class PduCacheEntry {
     private final GenericPdu mPdu;
     private final int mMessageBox;
     private final long mThreadId;
+    private final int mEstimatedSize;
 
     public PduCacheEntry(GenericPdu pdu, int msgBox, long threadId) {
         mPdu = pdu;
         mMessageBox = msgBox;
         mThreadId = threadId;
+        mEstimatedSize = pdu != null ? pdu.getEstimatedSize() : 0;
     }
 
     public GenericPdu getPdu() {
@@ -40,4 +42,12 @@ public final class PduCacheEntry {
     public long getThreadId() {
         return mThreadId;
     }
+
+    /**
+     * @return The estimated number of bytes held by the cached PDU, computed
+     *         when the entry was created.
+     */
+    public int getEstimatedSize() {
+        return mEstimatedSize;
+    }
 }
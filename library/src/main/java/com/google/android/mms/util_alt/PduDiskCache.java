@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import android.util.LongSparseArray;
+
+import com.google.android.mms.pdu_alt.GenericPdu;
+import com.google.android.mms.pdu_alt.PduSerializer;
+import com.klinker.android.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persistent second tier of {@link PduCache}, holding PDUs serialized by
+ * {@link PduSerializer} so that reopening a conversation after a cold start
+ * does not need to query the MMS provider again.
+ *
+ * <p>Entries are appended to a single log file, read back through a memory
+ * mapping, and located through an in-memory index keyed by message id that
+ * is rebuilt by scanning the log when the cache is opened. Removals append a
+ * tombstone. Once the log grows past its maximum size it is compacted, and
+ * the oldest entries are dropped if the live ones still do not fit. Writes
+ * are done on a background thread, so a load never waits for the log.
+ *
+ * <p>Every entry carries a stamp of the provider row it was loaded from, and
+ * is only served while the row still has the same stamp. Changes made to the
+ * row behind the library's back, and ids reused after a delete, therefore
+ * miss instead of returning a stale or foreign PDU.
+ */
+public final class PduDiskCache {
+    private static final String TAG = "PduDiskCache";
+    private static final boolean DEBUG = false;
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int MAGIC = 0x50445543; // "PDUC"
+    private static final int VERSION = 2;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    // msgId, msgBox, threadId, stamp, payload length
+    private static final int RECORD_HEADER_SIZE = 8 + 4 + 8 + 8 + 4;
+    private static final int TOMBSTONE = -1;
+
+    private final File mFile;
+    private final long mMaxBytes;
+    private final LongSparseArray<Record> mIndex;
+    // Writes queued on sWriter, dropped from here when the message is removed
+    // before they run.
+    private final LongSparseArray<PendingWrite> mPendingWrites;
+
+    private static ExecutorService sWriter;
+
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMap;
+    private long mEnd;
+
+    private static final class Record {
+        final long offset;
+        final int length;
+        final int msgBox;
+        final long threadId;
+        final long stamp;
+
+        Record(long offset, int length, int msgBox, long threadId, long stamp) {
+            this.offset = offset;
+            this.length = length;
+            this.msgBox = msgBox;
+            this.threadId = threadId;
+            this.stamp = stamp;
+        }
+    }
+
+    private static final class PendingWrite {
+        final int msgBox;
+        final long threadId;
+
+        PendingWrite(int msgBox, long threadId) {
+            this.msgBox = msgBox;
+            this.threadId = threadId;
+        }
+    }
+
+    /**
+     * Open, or create, a disk cache.
+     *
+     * @param file The log file backing the cache.
+     * @param maxBytes The size the log may reach before it is compacted.
+     * @throws IOException if the file cannot be opened.
+     */
+    public PduDiskCache(File file, long maxBytes) throws IOException {
+        mFile = file;
+        mMaxBytes = maxBytes;
+        mIndex = new LongSparseArray<Record>();
+        mPendingWrites = new LongSparseArray<PendingWrite>();
+        open();
+    }
+
+    /**
+     * @param msgId The id of the message.
+     * @param stamp The stamp of the message's provider row as it is now.
+     * @return The cached entry, or null if the message is not cached or was
+     *         cached from a different version of the row.
+     */
+    public synchronized PduCacheEntry get(long msgId, long stamp) {
+        Record record = mIndex.get(msgId);
+        if ((record == null) || (mChannel == null)) {
+            return null;
+        }
+        if (record.stamp != stamp) {
+            if (LOCAL_LOGV) {
+                Log.v(TAG, msgId + " changed since it was cached, dropping it.");
+            }
+            remove(msgId);
+            return null;
+        }
+
+        try {
+            long end = record.offset + record.length;
+            if ((mMap == null) || (end > mMap.capacity())) {
+                mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mEnd);
+            }
+            byte[] data = new byte[record.length];
+            ByteBuffer buffer = mMap.duplicate();
+            buffer.position((int) record.offset);
+            buffer.get(data);
+
+            GenericPdu pdu = PduSerializer.deserialize(data, 0, data.length);
+            return new PduCacheEntry(pdu, record.msgBox, record.threadId);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + msgId + ", dropping it.", e);
+            remove(msgId);
+            return null;
+        } catch (RuntimeException e) {
+            // Corrupt data can trip the deserializer in many ways.
+            Log.e(TAG, "Failed to parse " + msgId + ", dropping it.", e);
+            remove(msgId);
+            return null;
+        }
+    }
+
+    /**
+     * Store an entry, replacing any previous one for the same message. The
+     * PDU is serialized right away, so it may change afterwards, but it is
+     * written to the log in the background. A removal of the message before
+     * then cancels the write.
+     *
+     * @param msgId The id of the message.
+     * @param entry The entry to store.
+     * @param stamp The stamp of the provider row the entry was loaded from.
+     */
+    public void put(final long msgId, PduCacheEntry entry, final long stamp) {
+        final byte[] data;
+        try {
+            data = PduSerializer.serialize(entry.getPdu());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to serialize " + msgId, e);
+            return;
+        }
+
+        final PendingWrite pending =
+                new PendingWrite(entry.getMessageBox(), entry.getThreadId());
+        synchronized (this) {
+            if (mChannel == null) {
+                return;
+            }
+            mPendingWrites.put(msgId, pending);
+        }
+        getWriter().execute(new Runnable() {
+            @Override
+            public void run() {
+                write(msgId, pending, stamp, data);
+            }
+        });
+    }
+
+    private synchronized void write(long msgId, PendingWrite pending, long stamp, byte[] data) {
+        if ((mPendingWrites.get(msgId) != pending) || (mChannel == null)) {
+            // Removed, or superseded by a later put, while queued.
+            return;
+        }
+        mPendingWrites.remove(msgId);
+
+        try {
+            long offset = append(msgId, pending.msgBox, pending.threadId, stamp, data);
+            mIndex.put(msgId, new Record(offset, data.length,
+                    pending.msgBox, pending.threadId, stamp));
+
+            if (mEnd > mMaxBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + msgId, e);
+            mIndex.remove(msgId);
+        }
+    }
+
+    private static synchronized ExecutorService getWriter() {
+        if (sWriter == null) {
+            sWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "klinker-pdu-disk-cache");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sWriter;
+    }
+
+    /**
+     * @param msgId The id of the message to drop.
+     */
+    public synchronized void remove(long msgId) {
+        mPendingWrites.remove(msgId);
+        Record record = mIndex.get(msgId);
+        if (record == null) {
+            return;
+        }
+
+        mIndex.remove(msgId);
+        try {
+            append(msgId, record.msgBox, record.threadId, 0, null);
+        } catch (IOException e) {
+            // The entry would come back on the next open, so start over.
+            Log.e(TAG, "Failed to remove " + msgId + ", clearing cache.", e);
+            clear();
+        }
+    }
+
+    public synchronized void removeByThreadId(long threadId) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < mPendingWrites.size(); i++) {
+            if (mPendingWrites.valueAt(i).threadId == threadId) {
+                ids.add(mPendingWrites.keyAt(i));
+            }
+        }
+        for (int i = 0; i < mIndex.size(); i++) {
+            if (mIndex.valueAt(i).threadId == threadId) {
+                ids.add(mIndex.keyAt(i));
+            }
+        }
+        for (long msgId : ids) {
+            remove(msgId);
+        }
+    }
+
+    public synchronized void removeByMessageBox(int msgBox) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < mPendingWrites.size(); i++) {
+            if (mPendingWrites.valueAt(i).msgBox == msgBox) {
+                ids.add(mPendingWrites.keyAt(i));
+            }
+        }
+        for (int i = 0; i < mIndex.size(); i++) {
+            if (mIndex.valueAt(i).msgBox == msgBox) {
+                ids.add(mIndex.keyAt(i));
+            }
+        }
+        for (long msgId : ids) {
+            remove(msgId);
+        }
+    }
+
+    public synchronized void clear() {
+        mIndex.clear();
+        mPendingWrites.clear();
+        mMap = null;
+        try {
+            if (mChannel == null) {
+                open();
+            }
+            mChannel.truncate(FILE_HEADER_SIZE);
+            mEnd = FILE_HEADER_SIZE;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to clear " + mFile, e);
+            close();
+        }
+    }
+
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    public synchronized void close() {
+        mIndex.clear();
+        mPendingWrites.clear();
+        mMap = null;
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IOException while closing: " + mFile, e);
+            } // Ignore
+        }
+        mRaf = null;
+        mChannel = null;
+    }
+
+    private void open() throws IOException {
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = mRaf.getChannel();
+
+        long size = mChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if ((size < FILE_HEADER_SIZE) || (mChannel.read(header, 0) != FILE_HEADER_SIZE)
+                || (header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION)) {
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            mChannel.truncate(0);
+            mChannel.write(header, 0);
+            mEnd = FILE_HEADER_SIZE;
+            return;
+        }
+
+        mEnd = scan(size);
+        if (mEnd < size) {
+            // Drop a record left incomplete by a crash.
+            mChannel.truncate(mEnd);
+        }
+    }
+
+    /**
+     * Rebuild the index from the log.
+     *
+     * @return The end of the last complete record.
+     */
+    private long scan(long size) throws IOException {
+        mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            int p = (int) position;
+            long msgId = mMap.getLong(p);
+            int msgBox = mMap.getInt(p + 8);
+            long threadId = mMap.getLong(p + 12);
+            long stamp = mMap.getLong(p + 20);
+            int length = mMap.getInt(p + 28);
+
+            long payload = position + RECORD_HEADER_SIZE;
+            if (length == TOMBSTONE) {
+                mIndex.remove(msgId);
+                position = payload;
+            } else if ((length >= 0) && (payload + length <= size)) {
+                mIndex.put(msgId, new Record(payload, length, msgBox, threadId, stamp));
+                position = payload + length;
+            } else {
+                break;
+            }
+        }
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Opened " + mFile + " with " + mIndex.size() + " entries.");
+        }
+        return position;
+    }
+
+    /**
+     * Append a record, or a tombstone if data is null.
+     *
+     * @return The offset of the record payload.
+     */
+    private long append(long msgId, int msgBox, long threadId, long stamp, byte[] data)
+            throws IOException {
+        int length = data != null ? data.length : 0;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        buffer.putLong(msgId);
+        buffer.putInt(msgBox);
+        buffer.putLong(threadId);
+        buffer.putLong(stamp);
+        buffer.putInt(data != null ? data.length : TOMBSTONE);
+        if (data != null) {
+            buffer.put(data);
+        }
+        buffer.flip();
+
+        long position = mEnd;
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+        long payload = mEnd + RECORD_HEADER_SIZE;
+        mEnd = position;
+        return payload;
+    }
+
+    /**
+     * Rewrite the log with live records only, oldest first, dropping the
+     * oldest ones until the result takes at most half of the maximum size.
+     */
+    private void compact() throws IOException {
+        ArrayList<Long> ids = new ArrayList<Long>(mIndex.size());
+        long liveBytes = FILE_HEADER_SIZE;
+        for (int i = 0; i < mIndex.size(); i++) {
+            ids.add(mIndex.keyAt(i));
+            liveBytes += RECORD_HEADER_SIZE + mIndex.valueAt(i).length;
+        }
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long lhs, Long rhs) {
+                long l = mIndex.get(lhs).offset;
+                long r = mIndex.get(rhs).offset;
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        int first = 0;
+        while ((liveBytes > mMaxBytes / 2) && (first < ids.size())) {
+            liveBytes -= RECORD_HEADER_SIZE + mIndex.get(ids.get(first)).length;
+            first++;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.write(header, 0);
+
+            long position = FILE_HEADER_SIZE;
+            for (int i = first; i < ids.size(); i++) {
+                long msgId = ids.get(i);
+                Record record = mIndex.get(msgId);
+                ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                buffer.putLong(msgId);
+                buffer.putInt(record.msgBox);
+                buffer.putLong(record.threadId);
+                buffer.putLong(record.stamp);
+                buffer.putInt(record.length);
+                buffer.flip();
+                channel.write(buffer, position);
+
+                long payload = position + RECORD_HEADER_SIZE;
+                long copied = 0;
+                while (copied < record.length) {
+                    long count = mChannel.transferTo(record.offset + copied,
+                            record.length - copied, channel.position(payload + copied));
+                    if (count <= 0) {
+                        throw new IOException("Short copy while compacting " + mFile);
+                    }
+                    copied += count;
+                }
+                position = payload + record.length;
+            }
+        } finally {
+            out.close();
+        }
+
+        close();
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + mFile);
+        }
+        // Reopening rebuilds the index from the compacted log.
+        open();
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Compacted " + mFile + " to " + mIndex.size() + " entries, "
+                    + mEnd + " bytes.");
+        }
+    }
+}
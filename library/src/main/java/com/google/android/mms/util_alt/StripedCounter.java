@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over several cells, so that threads updating it at the
+ * same time rarely hit the same cache line. Reads sum the cells and are
+ * therefore only a snapshot.
+ */
+final class StripedCounter {
+    // Cells are this many longs apart to keep each one on its own cache line.
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray mCells;
+    private final int mMask;
+
+    StripedCounter() {
+        int stripes = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus) {
+            stripes <<= 1;
+        }
+        mMask = stripes - 1;
+        mCells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        int stripe = (int) (Thread.currentThread().getId() & mMask);
+        mCells.addAndGet(stripe * PADDING, delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < mCells.length(); i += PADDING) {
+            sum += mCells.get(i);
+        }
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < mCells.length(); i += PADDING) {
+            mCells.set(i, 0);
+        }
+    }
+}
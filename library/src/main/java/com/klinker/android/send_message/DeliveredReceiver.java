@@ -104,6 +104,7 @@ public abstract class DeliveredReceiver extends StatusUpdatedReceiver {
             e.printStackTrace();
         }
 
+        SendCallbacks.notifyDelivered(uri, resultCode);
         BroadcastUtils.sendExplicitBroadcast(context, new Intent(), Transaction.REFRESH);
     }
 
@@ -20,6 +20,7 @@ import static com.klinker.android.send_message.Transaction.getAddressSeparatorRe
 
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 import com.klinker.android.logger.Log;
 
@@ -37,6 +38,8 @@ public class Message {
 
     public static final class Part {
         private byte[] media;
+        private Uri mediaUri;
+        private ParcelFileDescriptor mediaDescriptor;
         private String contentType;
         private String name;
         private String fileName;
@@ -48,10 +51,35 @@ public class Message {
             this.fileName = fileName;
         }
 
+        public Part(Uri mediaUri, String contentType, String name, String fileName) {
+            this.mediaUri = mediaUri;
+            this.contentType = contentType;
+            this.name = name;
+            this.fileName = fileName;
+        }
+
+        public Part(ParcelFileDescriptor mediaDescriptor, String contentType, String name, String fileName) {
+            this.mediaDescriptor = mediaDescriptor;
+            this.contentType = contentType;
+            this.name = name;
+            this.fileName = fileName;
+        }
+
+        /**
+         * @return the media held in memory, or null if the part is backed by a uri or file descriptor
+         */
         public byte[] getMedia() {
             return media;
         }
 
+        public Uri getMediaUri() {
+            return mediaUri;
+        }
+
+        public ParcelFileDescriptor getMediaDescriptor() {
+            return mediaDescriptor;
+        }
+
         public String getContentType() {
             return contentType;
         }
@@ -398,6 +426,51 @@ public class Message {
         this.parts.add(new Part(media, mimeType, contentId, fileName));
     }
 
+    /**
+     * Adds other media that is read from a content or file uri while the message is being sent,
+     * so large attachments like videos never have to be loaded into memory
+     *
+     * @param media    is the uri of the media you want to send
+     * @param mimeType is the mimeType of the media
+     */
+    public void addMedia(Uri media, String mimeType) {
+        this.parts.add(new Part(media, mimeType, null, null));
+    }
+
+    /**
+     * Adds other media that is read from a content or file uri while the message is being sent
+     *
+     * @param media     is the uri of the media you want to send
+     * @param mimeType  is the mimetype of the media
+     * @param contentId is the name of the file
+     */
+    public void addMedia(Uri media, String mimeType, String contentId, String fileName) {
+        this.parts.add(new Part(media, mimeType, contentId, fileName));
+    }
+
+    /**
+     * Adds other media that is read from a file descriptor while the message is being sent. The
+     * descriptor is closed once the message has been handed off.
+     *
+     * @param media    is the descriptor of the media you want to send
+     * @param mimeType is the mimeType of the media
+     */
+    public void addMedia(ParcelFileDescriptor media, String mimeType) {
+        this.parts.add(new Part(media, mimeType, null, null));
+    }
+
+    /**
+     * Adds other media that is read from a file descriptor while the message is being sent. The
+     * descriptor is closed once the message has been handed off.
+     *
+     * @param media     is the descriptor of the media you want to send
+     * @param mimeType  is the mimetype of the media
+     * @param contentId is the name of the file
+     */
+    public void addMedia(ParcelFileDescriptor media, String mimeType, String contentId, String fileName) {
+        this.parts.add(new Part(media, mimeType, contentId, fileName));
+    }
+
     /**
      * Sets the subject
      *
@@ -555,6 +628,116 @@ public class Message {
         return output;
     }
 
+    private static final int DEFAULT_JPEG_QUALITY = 90;
+    private static final int MIN_JPEG_QUALITY = 20;
+    private static final int MAX_QUALITY_ATTEMPTS = 5;
+    private static final int MAX_SCALE_ATTEMPTS = 4;
+    private static final float SCALE_STEP = 0.75f;
+    private static final int INITIAL_JPEG_BUFFER_SIZE = 128 * 1024;
+
+    /**
+     * Converts a bitmap into jpeg data that fits into a byte budget. The image is first scaled down
+     * to fit within the max dimensions (in either orientation), then the highest quality that fits
+     * is found with a binary search over a few encodes. If even the lowest quality is too large, the
+     * image is scaled down further and searched again.
+     *
+     * @param image     is the image to convert
+     * @param maxBytes  is the largest the encoded image may be, or 0 for no limit
+     * @param maxWidth  is the widest the image may be, or 0 for no limit
+     * @param maxHeight is the tallest the image may be, or 0 for no limit
+     * @return a byte array of the image data, which may still be over budget if the image could not
+     * be shrunk enough
+     */
+    public static byte[] bitmapToByteArray(Bitmap image, int maxBytes, int maxWidth, int maxHeight) {
+        if (image == null) {
+            Log.v("Message", "image is null, returning byte array of size 0");
+            return new byte[0];
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        float scale = 1f;
+        if (maxWidth > 0 && maxHeight > 0) {
+            // let a portrait image use the limits the other way around
+            int widthLimit = (width >= height) == (maxWidth >= maxHeight) ? maxWidth : maxHeight;
+            int heightLimit = widthLimit == maxWidth ? maxHeight : maxWidth;
+            scale = Math.min(1f, Math.min((float) widthLimit / width, (float) heightLimit / height));
+        }
+
+        JpegBuffer buffer = new JpegBuffer();
+        byte[] best = null;
+
+        for (int attempt = 0; attempt < MAX_SCALE_ATTEMPTS; attempt++) {
+            Bitmap scaled = image;
+            if (scale < 1f) {
+                scaled = Bitmap.createScaledBitmap(image, Math.max(1, Math.round(width * scale)),
+                        Math.max(1, Math.round(height * scale)), true);
+            }
+
+            try {
+                best = encodeWithinBudget(scaled, maxBytes, buffer);
+            } finally {
+                if (scaled != image) {
+                    scaled.recycle();
+                }
+            }
+
+            if (maxBytes <= 0 || best.length <= maxBytes) {
+                return best;
+            }
+
+            scale *= SCALE_STEP;
+        }
+
+        Log.v("Message", "could not fit image into " + maxBytes + " bytes, using " + best.length);
+        return best;
+    }
+
+    private static byte[] encodeWithinBudget(Bitmap image, int maxBytes, JpegBuffer buffer) {
+        buffer.encode(image, DEFAULT_JPEG_QUALITY);
+        if (maxBytes <= 0 || buffer.size() <= maxBytes) {
+            return buffer.toByteArray();
+        }
+
+        byte[] best = null;
+        int low = MIN_JPEG_QUALITY;
+        int high = DEFAULT_JPEG_QUALITY - 1;
+        for (int attempt = 0; attempt < MAX_QUALITY_ATTEMPTS && low <= high; attempt++) {
+            int quality = (low + high) >>> 1;
+            buffer.encode(image, quality);
+            if (buffer.size() <= maxBytes) {
+                best = buffer.toByteArray();
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+        }
+
+        if (best == null) {
+            // nothing fit, hand back the smallest attempt so the caller can scale down
+            buffer.encode(image, MIN_JPEG_QUALITY);
+            best = buffer.toByteArray();
+        }
+
+        return best;
+    }
+
+    /**
+     * Output stream that keeps its buffer between encodes, so each attempt only grows it when it
+     * writes more than any attempt before it.
+     */
+    private static final class JpegBuffer extends ByteArrayOutputStream {
+
+        JpegBuffer() {
+            super(INITIAL_JPEG_BUFFER_SIZE);
+        }
+
+        void encode(Bitmap image, int quality) {
+            reset();
+            image.compress(Bitmap.CompressFormat.JPEG, quality, this);
+        }
+    }
+
     /**
      * Gets existing message uri
      *
@@ -47,6 +47,8 @@ public class MmsSentReceiver extends StatusUpdatedReceiver {
         SqliteWrapper.update(context, context.getContentResolver(), uri, values,
                 null, null);
 
+        SendCallbacks.notifySent(uri, resultCode);
+
         String filePath = intent.getStringExtra(EXTRA_FILE_PATH);
         Log.v(TAG, filePath);
         new File(filePath).delete();
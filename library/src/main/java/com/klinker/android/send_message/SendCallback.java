@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.net.Uri;
+
+/**
+ * Receives progress for a message sent with {@link Transaction#sendAsync}. Every stage is
+ * optional, so override only the ones you need.
+ * <p/>
+ * {@link #onPersisted} and {@link #onComposed} are called on the library's send thread. {@link #onSent}
+ * and {@link #onDelivered} are driven by the library's {@link SentReceiver}, {@link DeliveredReceiver} and
+ * {@link MmsSentReceiver}, so they are only reported while the process that started the send is
+ * still alive and those receivers run in it. Delivery is only reported for SMS with delivery reports
+ * turned on in {@link Settings}, and sent is not reported for mms when
+ * {@link Settings#getUseSystemSending()} is off, since that path does not broadcast a result.
+ */
+public abstract class SendCallback {
+
+    /**
+     * The message has been written to the outbox.
+     *
+     * @param messageUri the sms or mms row that was created
+     */
+    public void onPersisted(Uri messageUri) {
+    }
+
+    /**
+     * The message has been split into sms parts, or encoded into an mms pdu, and is about to be
+     * handed to the platform.
+     *
+     * @param messageUri the sms or mms row, or null if the message is not being saved
+     */
+    public void onComposed(Uri messageUri) {
+    }
+
+    /**
+     * The radio or the mmsc has accepted, or refused, the message.
+     *
+     * @param messageUri the sms or mms row
+     * @param resultCode {@link android.app.Activity#RESULT_OK} or one of the SmsManager error codes
+     */
+    public void onSent(Uri messageUri, int resultCode) {
+    }
+
+    /**
+     * A delivery report has arrived for the message.
+     *
+     * @param messageUri the sms row
+     * @param resultCode {@link android.app.Activity#RESULT_OK} if the message was delivered
+     */
+    public void onDelivered(Uri messageUri, int resultCode) {
+    }
+
+    /**
+     * Sending threw before the message could be handed to the platform. No more stages will be
+     * reported for the recipients that had not been reached yet.
+     */
+    public void onFailed(Throwable error) {
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.net.Uri;
+
+import com.klinker.android.logger.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Routes send stages to the {@link SendCallback} of the message they belong to. The callback of the
+ * send running on the current thread reports the synchronous stages, and is then remembered by
+ * message uri until the sent and delivered broadcasts come back.
+ */
+final class SendCallbacks {
+
+    private static final String TAG = "SendCallbacks";
+
+    // Broadcasts for a send can be lost (process death, no delivery report requested by the
+    // carrier), so keep only the most recent sends around rather than leaking callbacks.
+    private static final int MAX_PENDING = 256;
+
+    private static final ThreadLocal<SendCallback> sCurrent = new ThreadLocal<SendCallback>();
+
+    private static final Map<String, Pending> sPending =
+            new LinkedHashMap<String, Pending>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Pending> eldest) {
+                    return size() > MAX_PENDING;
+                }
+            };
+
+    private static final class Pending {
+        final SendCallback callback;
+        final boolean expectsDelivery;
+        boolean sent;
+
+        Pending(SendCallback callback, boolean expectsDelivery) {
+            this.callback = callback;
+            this.expectsDelivery = expectsDelivery;
+        }
+    }
+
+    private SendCallbacks() {
+    }
+
+    static void begin(SendCallback callback) {
+        sCurrent.set(callback);
+    }
+
+    static void end() {
+        sCurrent.remove();
+    }
+
+    static void notifyPersisted(Uri messageUri, boolean expectsDelivery) {
+        SendCallback callback = sCurrent.get();
+        if (callback == null || messageUri == null) {
+            return;
+        }
+
+        synchronized (sPending) {
+            sPending.put(messageUri.toString(), new Pending(callback, expectsDelivery));
+        }
+        try {
+            callback.onPersisted(messageUri);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "send callback threw", e);
+        }
+    }
+
+    static void notifyComposed(Uri messageUri) {
+        SendCallback callback = sCurrent.get();
+        if (callback == null) {
+            return;
+        }
+
+        try {
+            callback.onComposed(messageUri);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "send callback threw", e);
+        }
+    }
+
+    static void notifySent(Uri messageUri, int resultCode) {
+        if (messageUri == null) {
+            return;
+        }
+
+        SendCallback callback;
+        synchronized (sPending) {
+            String key = messageUri.toString();
+            Pending pending = sPending.get(key);
+
+            // a multipart sms reports once per part, only the first one is passed on
+            if (pending == null || pending.sent) {
+                return;
+            }
+
+            pending.sent = true;
+            if (!pending.expectsDelivery) {
+                sPending.remove(key);
+            }
+            callback = pending.callback;
+        }
+
+        try {
+            callback.onSent(messageUri, resultCode);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "send callback threw", e);
+        }
+    }
+
+    static void notifyDelivered(Uri messageUri, int resultCode) {
+        if (messageUri == null) {
+            return;
+        }
+
+        Pending pending;
+        synchronized (sPending) {
+            pending = sPending.remove(messageUri.toString());
+        }
+
+        if (pending != null) {
+            try {
+                pending.callback.onDelivered(messageUri, resultCode);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "send callback threw", e);
+            }
+        }
+    }
+
+    static void notifyFailed(Throwable error) {
+        SendCallback callback = sCurrent.get();
+        if (callback == null) {
+            return;
+        }
+
+        try {
+            callback.onFailed(error);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "send callback threw", e);
+        }
+    }
+}
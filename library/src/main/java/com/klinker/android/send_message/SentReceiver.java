@@ -87,6 +87,7 @@ public abstract class SentReceiver extends StatusUpdatedReceiver {
             e.printStackTrace();
         }
 
+        SendCallbacks.notifySent(uri, resultCode);
         BroadcastUtils.sendExplicitBroadcast(context, new Intent(), Transaction.REFRESH);
     }
 
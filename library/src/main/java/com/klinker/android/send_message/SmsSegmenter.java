@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import com.android.internal.telephony.GsmAlphabet;
+import com.android.internal.telephony.SmsConstants;
+
+import java.util.Arrays;
+
+/**
+ * Splits text into sms segments the way the radio will, without going through
+ * {@link android.telephony.SmsMessage#calculateLength(CharSequence, boolean)} each time.
+ * <p/>
+ * A single pass over the text counts septets for the GSM 7 bit default alphabet and its extension
+ * table, and code units for UCS-2, and records where each segment starts for both, so switching to
+ * UCS-2 when an unencodable character shows up needs no second pass. Text that is only appended to,
+ * like a compose box being typed into, is counted incrementally with {@link #update(CharSequence)}.
+ * <p/>
+ * National language shift tables are not used, which matches the bundled {@link GsmAlphabet}.
+ */
+public class SmsSegmenter {
+
+    private static final int UCS2_UNITS_PER_MESSAGE = SmsConstants.MAX_USER_DATA_BYTES / 2;
+    private static final int UCS2_UNITS_PER_SEGMENT = SmsConstants.MAX_USER_DATA_BYTES_WITH_HEADER / 2;
+
+    private final StringBuilder mText = new StringBuilder();
+
+    private boolean mUnicode;
+    private int mSeptets;
+    private int mGsmSegmentFill;
+    private int[] mGsmStarts = new int[4];
+    private int mGsmSegments;
+    private int mUcs2SegmentFill;
+    private int[] mUcs2Starts = new int[4];
+    private int mUcs2Segments;
+
+    public SmsSegmenter() {
+        reset();
+    }
+
+    /**
+     * Drop-in replacement for {@link android.telephony.SmsMessage#calculateLength(CharSequence, boolean)}.
+     *
+     * @return the message count, code units used, code units remaining in the last message and the
+     * code unit size, in that order
+     */
+    public static int[] calculateLength(CharSequence text) {
+        SmsSegmenter segmenter = new SmsSegmenter();
+        segmenter.append(text);
+        return new int[]{segmenter.getMessageCount(), segmenter.getCodeUnitCount(),
+                segmenter.getCodeUnitsRemaining(), segmenter.getEncoding()};
+    }
+
+    /**
+     * Counts the text, reusing what was already counted if it only has characters added to the end
+     * of the last text passed in. Anything else starts over.
+     */
+    public void update(CharSequence text) {
+        int counted = mText.length();
+        if (text.length() < counted || !startsWithCounted(text)) {
+            reset();
+            counted = 0;
+        }
+
+        append(text, counted, text.length());
+    }
+
+    public void append(CharSequence text) {
+        append(text, 0, text.length());
+    }
+
+    public void append(CharSequence text, int start, int end) {
+        byte[] costs = SeptetCosts.TABLE;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int index = mText.length();
+            mText.append(c);
+
+            int cost = costs[c];
+            if (cost < 0) {
+                mUnicode = true;
+                cost = 1;
+            }
+            if (cost > 0) {
+                if (mGsmSegmentFill + cost > SmsConstants.MAX_USER_DATA_SEPTETS_WITH_HEADER) {
+                    mGsmStarts = addStart(mGsmStarts, mGsmSegments++, index);
+                    mGsmSegmentFill = 0;
+                }
+                mGsmSegmentFill += cost;
+                mSeptets += cost;
+            }
+
+            if (i == start && index > 0 && Character.isLowSurrogate(c)
+                    && Character.isHighSurrogate(mText.charAt(index - 1))) {
+                // the high surrogate ended the text counted before and was counted on its own,
+                // so if this half no longer fits the whole pair moves on to the next segment,
+                // the same as if both had been counted together
+                if (mUcs2SegmentFill + 1 > UCS2_UNITS_PER_SEGMENT) {
+                    mUcs2Starts = addStart(mUcs2Starts, mUcs2Segments++, index - 1);
+                    mUcs2SegmentFill = 1;
+                }
+                mUcs2SegmentFill++;
+                continue;
+            }
+
+            // never leave half of a surrogate pair at the end of a segment
+            int units = Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(text.charAt(i + 1)) ? 2 : 1;
+            if (mUcs2SegmentFill + units > UCS2_UNITS_PER_SEGMENT) {
+                mUcs2Starts = addStart(mUcs2Starts, mUcs2Segments++, index);
+                mUcs2SegmentFill = 0;
+            }
+            if (units == 2) {
+                mText.append(text.charAt(++i));
+            }
+            mUcs2SegmentFill += units;
+        }
+    }
+
+    public void reset() {
+        mText.setLength(0);
+        mUnicode = false;
+        mSeptets = 0;
+        mGsmSegmentFill = 0;
+        mGsmSegments = 1;
+        mUcs2SegmentFill = 0;
+        mUcs2Segments = 1;
+    }
+
+    /**
+     * @return {@link SmsConstants#ENCODING_7BIT} or {@link SmsConstants#ENCODING_16BIT}
+     */
+    public int getEncoding() {
+        return mUnicode ? SmsConstants.ENCODING_16BIT : SmsConstants.ENCODING_7BIT;
+    }
+
+    /**
+     * @return septets for 7 bit text, or UTF-16 code units for UCS-2 text
+     */
+    public int getCodeUnitCount() {
+        return mUnicode ? mText.length() : mSeptets;
+    }
+
+    public int getMessageCount() {
+        if (isSingleMessage()) {
+            return 1;
+        }
+        return mUnicode ? mUcs2Segments : mGsmSegments;
+    }
+
+    /**
+     * @return how many more code units fit before another message is needed
+     */
+    public int getCodeUnitsRemaining() {
+        if (isSingleMessage()) {
+            return (mUnicode ? UCS2_UNITS_PER_MESSAGE : SmsConstants.MAX_USER_DATA_SEPTETS)
+                    - getCodeUnitCount();
+        }
+        return mUnicode ? UCS2_UNITS_PER_SEGMENT - mUcs2SegmentFill
+                : SmsConstants.MAX_USER_DATA_SEPTETS_WITH_HEADER - mGsmSegmentFill;
+    }
+
+    /**
+     * @return the index in the text where each message starts, the first one always being 0
+     */
+    public int[] getSegmentStarts() {
+        int count = getMessageCount();
+        int[] starts = new int[count];
+        if (count > 1) {
+            System.arraycopy(mUnicode ? mUcs2Starts : mGsmStarts, 0, starts, 0, count);
+        }
+        return starts;
+    }
+
+    private boolean isSingleMessage() {
+        return getCodeUnitCount() <= (mUnicode ? UCS2_UNITS_PER_MESSAGE : SmsConstants.MAX_USER_DATA_SEPTETS);
+    }
+
+    private boolean startsWithCounted(CharSequence text) {
+        for (int i = mText.length() - 1; i >= 0; i--) {
+            if (text.charAt(i) != mText.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] addStart(int[] starts, int segment, int index) {
+        if (segment == starts.length) {
+            int[] grown = new int[starts.length * 2];
+            System.arraycopy(starts, 0, grown, 0, starts.length);
+            starts = grown;
+        }
+        starts[segment] = index;
+        return starts;
+    }
+
+    /**
+     * Septets needed for each char: 1 for the default alphabet, 2 for escape + extension table, 0 for
+     * the escape char itself (which GsmAlphabet skips) and -1 for chars that need UCS-2. Built the
+     * first time a segmenter counts anything.
+     */
+    private static final class SeptetCosts {
+        static final byte[] TABLE = build();
+
+        private static byte[] build() {
+            byte[] costs = new byte[Character.MAX_VALUE + 1];
+            Arrays.fill(costs, (byte) -1);
+            for (int i = 0; i < 128; i++) {
+                costs[GsmAlphabet.gsmToChar(i)] = 1;
+            }
+            for (int i = 0; i < 128; i++) {
+                char c = GsmAlphabet.gsmExtendedToChar(i);
+                if (costs[c] == -1) {
+                    costs[c] = 2;
+                }
+            }
+            costs[GsmAlphabet.GSM_EXTENDED_ESCAPE] = 0;
+            return costs;
+        }
+    }
+}
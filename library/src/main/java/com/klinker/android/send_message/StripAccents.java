@@ -16,8 +16,6 @@
 
 package com.klinker.android.send_message;
 
-import android.telephony.SmsMessage;
-
 public class StripAccents {
 
     public static String characters = "\u03B1\u03B2\u03B3\u03B4\u03B5\u03B6\u03B7\u03B8\u03B9\u03BA\u03BB\u03BC\u03BD" +
@@ -34,15 +32,90 @@ public class StripAccents {
             "\u03A9IYIYABEZHIKMNOPTYXAEHIO\u03A9IY\u00DC\u00FC\u00D6\u00F6acelnszzACELNSZZAAAEEIIOOUU" +
             "aaeiouucescrzdtnaieoyuESCRZDTNAEIOYUUrlloRLLOIIee";
 
+    private static Table sTable;
+
+    /**
+     * Replaces every char in {@link #characters} with the char at the same position in {@link #gsm}.
+     *
+     * @return the same instance if nothing needed replacing
+     */
     public static String stripAccents(String s) {
-        int[] messageData = SmsMessage.calculateLength(s, false);
+        int[] messageData = SmsSegmenter.calculateLength(s);
 
         if (messageData[0] != 1) {
-            for (int i = 0; i < characters.length(); i++) {
-                s = s.replaceAll(characters.substring(i, i + 1), gsm.substring(i, i + 1));
+            Table table = getTable();
+            char[] replaced = null;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                int index = c - table.first;
+                if (index < 0 || index >= table.replacements.length || table.replacements[index] == 0) {
+                    continue;
+                }
+                if (replaced == null) {
+                    replaced = s.toCharArray();
+                }
+                replaced[i] = table.replacements[index];
+            }
+
+            if (replaced != null) {
+                s = new String(replaced);
             }
         }
 
         return s;
     }
+
+    /**
+     * Gets the replacement table, rebuilding it if {@link #characters} or {@link #gsm} were swapped.
+     */
+    private static synchronized Table getTable() {
+        if (sTable == null || sTable.characters != characters || sTable.gsm != gsm) {
+            sTable = new Table(characters, gsm);
+        }
+        return sTable;
+    }
+
+    /**
+     * Replacement for each char between the lowest and highest char in the source string, or 0 for
+     * chars that stay as they are.
+     */
+    private static final class Table {
+        final String characters;
+        final String gsm;
+        final char first;
+        final char[] replacements;
+
+        Table(String characters, String gsm) {
+            this.characters = characters;
+            this.gsm = gsm;
+
+            char min = Character.MAX_VALUE;
+            char max = 0;
+            for (int i = 0; i < characters.length(); i++) {
+                min = (char) Math.min(min, characters.charAt(i));
+                max = (char) Math.max(max, characters.charAt(i));
+            }
+
+            first = min;
+            replacements = new char[max < min ? 0 : max - min + 1];
+            for (int i = 0; i < characters.length(); i++) {
+                char c = characters.charAt(i);
+                if (replacements[c - min] != 0) {
+                    continue;
+                }
+
+                // each replacement used to run over the output of the ones before it, so a
+                // replacement that is itself in the list keeps going down the list
+                char result = c;
+                for (int j = i; j < characters.length(); j++) {
+                    if (characters.charAt(j) == result) {
+                        result = gsm.charAt(j);
+                    }
+                }
+                if (result != c) {
+                    replacements[c - min] = result;
+                }
+            }
+        }
+    }
 }
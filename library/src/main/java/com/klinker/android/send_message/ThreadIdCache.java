@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.text.TextUtils;
+
+import com.google.android.mms.util_alt.SqliteWrapper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * In-process cache of thread ids keyed by recipient set, so that repeat sends
+ * to the same contacts skip the content://mms-sms/threadID round trip.
+ *
+ * Thread ids stay valid until the thread is deleted, which can happen outside
+ * of this library (the provider drops empty threads on its own). The provider
+ * notifies the same URIs for every new message and status update as for
+ * deletions, so a change doesn't drop anything. Once the cache has been
+ * obtained with {@link #getInstance(Context)}, a change only means that an
+ * entry is checked against the threads table before it is used again; apps
+ * that delete conversations can also call {@link #invalidate(long)} (or
+ * {@link #clear()}) themselves.
+ */
+public class ThreadIdCache {
+    private static final int MAX_ENTRIES = 256;
+
+    private static ThreadIdCache sInstance;
+    private static boolean sObserving;
+
+    // Least recently used entries are dropped first.
+    private final LinkedHashMap<String, Entry> mThreadIds;
+
+    // Bumped whenever the conversations change, entries confirmed before that
+    // are checked again before they are used.
+    private int mGeneration;
+
+    // Not private so that tests can stub threadExists().
+    ThreadIdCache() {
+        mThreadIds = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    public static synchronized ThreadIdCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ThreadIdCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Same as {@link #getInstance()}, but also makes sure that entries are
+     * checked again once the conversations in the provider have changed.
+     *
+     * @param context any context, only its application context is kept
+     */
+    public static synchronized ThreadIdCache getInstance(Context context) {
+        final ThreadIdCache cache = getInstance();
+        if (!sObserving) {
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    Telephony.MmsSms.CONTENT_CONVERSATIONS_URI, true,
+                    new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange, Uri uri) {
+                            cache.onConversationsChanged();
+                        }
+                    });
+            sObserving = true;
+        }
+        return cache;
+    }
+
+    /**
+     * @param recipients the set of people the message is being sent to
+     * @return the cached thread id, or -1 if there is none
+     */
+    public synchronized long get(Set<String> recipients) {
+        Entry entry = mThreadIds.get(getKey(recipients));
+        return entry != null ? entry.threadId : -1;
+    }
+
+    /**
+     * Same as {@link #get(Set)}, but if the conversations changed since the
+     * entry was last confirmed, it is only returned if its thread still exists.
+     *
+     * @param context the context to query the provider with
+     * @param recipients the set of people the message is being sent to
+     * @return the cached thread id, or -1 if there is none
+     */
+    public long get(Context context, Set<String> recipients) {
+        final Entry entry;
+        final int generation;
+        synchronized (this) {
+            entry = mThreadIds.get(getKey(recipients));
+            generation = mGeneration;
+        }
+        if (entry == null) {
+            return -1;
+        }
+        if (entry.confirmedGeneration == generation) {
+            return entry.threadId;
+        }
+
+        if (threadExists(context, entry.threadId)) {
+            synchronized (this) {
+                if (entry.confirmedGeneration < generation) {
+                    entry.confirmedGeneration = generation;
+                }
+            }
+            return entry.threadId;
+        }
+        invalidate(entry.threadId);
+        return -1;
+    }
+
+    /**
+     * @param recipients the set of people the message is being sent to
+     * @param threadId the thread id the provider resolved them to
+     */
+    public synchronized void put(Set<String> recipients, long threadId) {
+        mThreadIds.put(getKey(recipients), new Entry(threadId, mGeneration));
+    }
+
+    /**
+     * Forget a thread, for example after it has been deleted.
+     *
+     * @param threadId the id of the thread
+     */
+    public synchronized void invalidate(long threadId) {
+        Iterator<Entry> iterator = mThreadIds.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().threadId == threadId) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mThreadIds.clear();
+    }
+
+    synchronized void onConversationsChanged() {
+        mGeneration++;
+    }
+
+    /**
+     * Looks the thread up by its primary key, which is much cheaper than
+     * matching the recipients against the canonical addresses again.
+     */
+    boolean threadExists(Context context, long threadId) {
+        Uri uri = Telephony.Threads.CONTENT_URI.buildUpon()
+                .appendQueryParameter("simple", "true").build();
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(), uri,
+                new String[] {Telephony.Threads._ID}, Telephony.Threads._ID + "=" + threadId,
+                null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds a key that does not depend on the order of the recipients or on
+     * formatting that the provider ignores when matching them.
+     */
+    static String getKey(Set<String> recipients) {
+        TreeSet<String> normalized = new TreeSet<String>();
+        for (String recipient : recipients) {
+            if (TextUtils.isEmpty(recipient)) {
+                continue;
+            }
+
+            if (Utils.isEmailAddress(recipient)) {
+                normalized.add(Utils.extractAddrSpec(recipient).toLowerCase(Locale.US));
+            } else {
+                normalized.add(stripSeparators(recipient));
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (String recipient : normalized) {
+            if (key.length() > 0) {
+                key.append(';');
+            }
+            key.append(recipient);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Same as PhoneNumberUtils.stripSeparators(): keeps the digits, converted
+     * to ASCII, and the dialable characters.
+     */
+    private static String stripSeparators(String number) {
+        StringBuilder stripped = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            int digit = Character.digit(c, 10);
+            if (digit != -1) {
+                stripped.append(digit);
+            } else if (c == '*' || c == '#' || c == '+' || c == 'N' || c == ';' || c == ',') {
+                stripped.append(c);
+            }
+        }
+        return stripped.toString();
+    }
+
+    private static class Entry {
+        final long threadId;
+        // The generation in which the thread was last known to exist.
+        volatile int confirmedGeneration;
+
+        Entry(long threadId, int confirmedGeneration) {
+            this.threadId = threadId;
+            this.confirmedGeneration = confirmedGeneration;
+        }
+    }
+}
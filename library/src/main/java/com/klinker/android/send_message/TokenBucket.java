@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.os.SystemClock;
+
+/**
+ * Token bucket used to pace messages handed to the radio. Tokens accrue at a fixed rate up to a
+ * burst of one second's worth, and {@link #acquire()} sleeps until one is available.
+ */
+class TokenBucket {
+    private final double mTokensPerMilli;
+    private final double mCapacity;
+
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param tokensPerSecond is the sustained rate, must be positive
+     */
+    TokenBucket(double tokensPerSecond) {
+        if (tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + tokensPerSecond);
+        }
+
+        mTokensPerMilli = tokensPerSecond / 1000;
+        mCapacity = Math.max(1, tokensPerSecond);
+        mTokens = 1;
+        mLastRefill = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Blocks until a token is available and takes it.
+     */
+    void acquire() throws InterruptedException {
+        while (true) {
+            long now = SystemClock.elapsedRealtime();
+            mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mTokensPerMilli);
+            mLastRefill = now;
+
+            if (mTokens >= 1) {
+                mTokens -= 1;
+                return;
+            }
+
+            long wait = (long) Math.ceil((1 - mTokens) / mTokensPerMilli);
+            Thread.sleep(Math.max(1, wait));
+        }
+    }
+}
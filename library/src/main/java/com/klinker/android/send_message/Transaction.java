@@ -19,25 +19,32 @@ package com.klinker.android.send_message;
 import android.annotation.SuppressLint;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.provider.Telephony;
 import android.telephony.SmsManager;
-import android.telephony.SmsMessage;
 import android.text.TextUtils;
 
 import com.android.mms.MmsConfig;
 import com.android.mms.dom.smil.parser.SmilXmlSerializer;
+import com.android.mms.service_alt.MmsConfigManager;
+import com.android.mms.service_alt.MmsHttpClient;
 import com.android.mms.service_alt.MmsNetworkManager;
+import com.android.mms.service_alt.MmsRequest;
 import com.android.mms.service_alt.MmsRequestManager;
 import com.android.mms.service_alt.SendRequest;
 import com.android.mms.util.DownloadManager;
@@ -63,14 +70,28 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class to process transaction requests for sending
@@ -82,6 +103,8 @@ public class Transaction {
     private static final String TAG = "Transaction";
     public static Settings settings;
     private Context context;
+    // the settings this transaction sends with, the static one is replaced by every new transaction
+    private final Settings transactionSettings;
 
     private Intent explicitSentSmsReceiver;
     private Intent explicitSentMmsReceiver;
@@ -89,6 +112,12 @@ public class Transaction {
 
     private boolean saveMessage = true;
 
+    private final Map<Message.Part, File> spooledMedia = new IdentityHashMap<Message.Part, File>();
+
+    private static ExecutorService sSendExecutor;
+    private static ExecutorService sEncodeExecutor;
+    private static final long ENCODE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
     public String SMS_SENT = ".SMS_SENT";
     public String SMS_DELIVERED = ".SMS_DELIVERED";
     public static final String SENT_SMS_BUNDLE = "com.klinker.android.send_message.SENT_SMS_BUNDLE";
@@ -103,6 +132,16 @@ public class Transaction {
 
     public static final long NO_THREAD_ID = 0;
 
+    /**
+     * Number of outbox rows written per provider call by {@link #sendBulkSmsMessages}.
+     */
+    public static final int BULK_INSERT_BATCH_SIZE = 100;
+
+    // room left for the pdu headers and the smil part when sizing image attachments
+    private static final int MMS_OVERHEAD_BYTES = 8 * 1024;
+    private static final int MIN_IMAGE_BYTES = 16 * 1024;
+    private static final int MEDIA_COPY_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Sets context and initializes settings to default values
      *
@@ -120,6 +159,7 @@ public class Transaction {
      */
     public Transaction(Context context, Settings settings) {
         this.settings = settings;
+        this.transactionSettings = settings;
         this.context = context;
 
         SMS_SENT = context.getPackageName() + SMS_SENT;
@@ -164,26 +204,30 @@ public class Transaction {
             RateController.init(context);
             DownloadManager.init(context);
 
-            if (!settings.getGroup()) {
-                // send individual MMS to each person in the group of addresses
-                for (String address : message.getAddresses()) {
-                    sendMmsMessage(message.getText(), message.getFromAddress(), new String[]{address},
+            try {
+                if (!transactionSettings.getGroup()) {
+                    // send individual MMS to each person in the group of addresses
+                    for (String address : message.getAddresses()) {
+                        sendMmsMessage(message.getText(), message.getFromAddress(), new String[]{address},
+                                message.getImages(), message.getImageNames(), message.getParts(), message.getSubject(),
+                                message.getSave(), message.getMessageUri(),
+                                sentMessageParcelable);
+                    }
+                } else {
+                    sendMmsMessage(message.getText(), message.getFromAddress(), message.getAddresses(),
                             message.getImages(), message.getImageNames(), message.getParts(), message.getSubject(),
                             message.getSave(), message.getMessageUri(),
                             sentMessageParcelable);
                 }
-            } else {
-                sendMmsMessage(message.getText(), message.getFromAddress(), message.getAddresses(),
-                        message.getImages(), message.getImageNames(), message.getParts(), message.getSubject(),
-                        message.getSave(), message.getMessageUri(),
-                        sentMessageParcelable);
+            } finally {
+                deleteSpooledMedia();
             }
         } else {
             String[] addresses = message.getAddresses();
             String text = message.getText();
             // add signature to original text to be saved in database (does not strip unicode for saving though)
-            if (!settings.getSignature().equals("")) {
-                text += "\n" + settings.getSignature();
+            if (!transactionSettings.getSignature().equals("")) {
+                text += "\n" + transactionSettings.getSignature();
             }
 
             if (addresses.length > 1) {
@@ -207,6 +251,133 @@ public class Transaction {
         this.sendNewMessage(message, new Bundle(), new Bundle());
     }
 
+    /**
+     * Queues a message to be sent on the library's send thread and returns right away, so it is safe
+     * to call from the UI thread. Messages are sent one at a time in the order they were queued, each
+     * with the {@link Settings} this transaction was created with.
+     * <p/>
+     * Cancelling the returned future before the send has started drops the message. Once it has
+     * started, cancelling with {@code mayInterruptIfRunning} only stops a send that is still waiting,
+     * anything already handed to the platform is still sent.
+     *
+     * @param message               is the message that you want to send
+     * @param sentMessageParcelable is the piece of data that will be retrieved when BroadcastReceiver is called for sent message
+     * @param deliveredParcelable   is the piece of data that will be retrieved when BroadcastReceiver is called for delivered message
+     * @param callback              receives the progress of the message, can be null
+     * @return a future that completes when the message has been handed to the platform, or throws
+     * whatever {@link #sendNewMessage(Message, Parcelable, Parcelable)} threw
+     */
+    public Future<Void> sendAsync(
+            final Message message,
+            final Parcelable sentMessageParcelable,
+            final Parcelable deliveredParcelable,
+            final SendCallback callback
+    ) {
+        return getSendExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                SendCallbacks.begin(callback);
+                try {
+                    sendNewMessage(message, sentMessageParcelable, deliveredParcelable);
+                } catch (Exception e) {
+                    SendCallbacks.notifyFailed(e);
+                    throw e;
+                } finally {
+                    SendCallbacks.end();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Queues a message to be sent on the library's send thread and returns right away.
+     *
+     * @param message  is the message that you want to send
+     * @param callback receives the progress of the message, can be null
+     * @see #sendAsync(Message, Parcelable, Parcelable, SendCallback)
+     */
+    public Future<Void> sendAsync(Message message, SendCallback callback) {
+        return sendAsync(message, new Bundle(), new Bundle(), callback);
+    }
+
+    private static synchronized ExecutorService getSendExecutor() {
+        if (sSendExecutor == null) {
+            sSendExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "klinker-send");
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+
+        return sSendExecutor;
+    }
+
+    /**
+     * Encodes the images on a pool with one thread per core, so an album is not compressed one photo
+     * at a time. At most one scaled copy and one jpeg buffer per pool thread are alive at once.
+     */
+    private static byte[][] encodeImages(final Bitmap[] images, final int maxBytes,
+                                         final int maxWidth, final int maxHeight) throws Exception {
+        byte[][] encoded = new byte[images.length][];
+
+        if (images.length == 1) {
+            encoded[0] = Message.bitmapToByteArray(images[0], maxBytes, maxWidth, maxHeight);
+            return encoded;
+        }
+
+        List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>(images.length);
+        try {
+            for (final Bitmap image : images) {
+                pending.add(getEncodeExecutor().submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return Message.bitmapToByteArray(image, maxBytes, maxWidth, maxHeight);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < images.length; i++) {
+                encoded[i] = pending.get(i).get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+        }
+
+        return encoded;
+    }
+
+    private static synchronized ExecutorService getEncodeExecutor() {
+        if (sEncodeExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    ENCODE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "klinker-encode-" + mCount.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sEncodeExecutor = executor;
+        }
+
+        return sEncodeExecutor;
+    }
+
     /**
      * Optional: define a {@link BroadcastReceiver} that will get started when Android notifies us that the SMS has
      * been marked as "sent". If you do not define a receiver here, it will look for the .SMS_SENT receiver
@@ -269,149 +440,325 @@ public class Transaction {
             final Parcelable sentMessageParcelable,
             final Parcelable deliveredParcelable
     ) throws Exception {
-        Uri messageUri;
-        int messageId = 0;
         if (saveMessage) {
             Log.v("send_transaction", "saving message");
-
-            Calendar cal = Calendar.getInstance();
-            ContentValues values = new ContentValues();
-            values.put(Telephony.Sms.ADDRESS, address);
-            values.put(Telephony.Sms.BODY, settings.getStripUnicode() ? StripAccents.stripAccents(text) : text);
-            values.put(Telephony.Sms.DATE, cal.getTimeInMillis() + "");
-            values.put(Telephony.Sms.READ, 1);
-            values.put(Telephony.Sms.TYPE, 4);
-
-            // insert subscription id only if it is a valid one.
-            int subscriptionId = settings.getSubscriptionId();
-            if (Settings.DEFAULT_SUBSCRIPTION_ID != subscriptionId) {
-                values.put(Telephony.Sms.SUBSCRIPTION_ID, subscriptionId);
-            }
-
             Log.v("send_transaction", "saving message with thread id: " + threadId);
 
-            values.put(Telephony.Sms.THREAD_ID, threadId);
-            messageUri = context.getContentResolver().insert(Uri.parse("content://sms/"), values);
+            Uri messageUri = context.getContentResolver().insert(Uri.parse("content://sms/"),
+                    buildSmsValues(text, address, threadId));
 
             Log.v("send_transaction", "inserted to uri: " + messageUri);
+            SendCallbacks.notifyPersisted(messageUri, transactionSettings.getDeliveryReports());
 
-            Cursor query = context.getContentResolver().query(messageUri, new String[]{"_id"}, null, null, null);
-            if (query != null) {
-                if (query.moveToFirst()) {
-                    messageId = query.getInt(0);
-                }
-                query.close();
-            }
+            dispatchSmsMessage(text, address, messageUri, sentMessageParcelable, deliveredParcelable);
+        }
+    }
 
-            Log.v("send_transaction", "message id: " + messageId);
+    /**
+     * Sends the same text to each address as its own conversation, for broadcasts to a large number
+     * of recipients. Thread ids are resolved once per distinct address, the outbox rows are written
+     * in batches of {@link #BULK_INSERT_BATCH_SIZE} and the messages are handed to the radio at
+     * most {@code messagesPerSecond} at a time, so carriers do not throttle the sender.
+     * <p/>
+     * As with single messages, nothing is sent unless the messages are being saved. A recipient
+     * whose outbox row cannot be written is reported to the listener as failed instead of sent.
+     * <p/>
+     * This call blocks until every message has been handed to the {@link SmsManager}, so do not
+     * call it from the UI thread.
+     *
+     * @param text                  is the text to send
+     * @param addresses             are the recipients, each one gets its own message
+     * @param messagesPerSecond     is the maximum sustained rate of messages handed to the radio
+     * @param sentMessageParcelable is the piece of data that will be retrieved when BroadcastReceiver is called for sent message
+     * @param deliveredParcelable   is the piece of data that will be retrieved when BroadcastReceiver is called for delivered message
+     * @param listener              is notified as each recipient is sent or fails, may be null
+     */
+    public void sendBulkSmsMessages(
+            String text,
+            final String[] addresses,
+            final double messagesPerSecond,
+            final Parcelable sentMessageParcelable,
+            final Parcelable deliveredParcelable,
+            final BulkSendListener listener
+    ) throws InterruptedException {
+        if (!transactionSettings.getSignature().equals("")) {
+            text += "\n" + transactionSettings.getSignature();
+        }
 
-            // set up sent and delivered pending intents to be used with message request
-            Intent sentIntent;
-            if (explicitSentSmsReceiver == null) {
-                sentIntent = new Intent(SMS_SENT);
-                BroadcastUtils.addClassName(context, sentIntent, SMS_SENT);
-            } else {
-                sentIntent = explicitSentSmsReceiver;
+        // like sendSmsMessage, nothing is handed to the radio unless it is saved first
+        if (!saveMessage) {
+            Log.v(TAG, "not saving bulk messages, nothing to send");
+            return;
+        }
+
+        List<Set<String>> recipientSets = new ArrayList<Set<String>>(addresses.length);
+        for (String address : addresses) {
+            recipientSets.add(Collections.singleton(address));
+        }
+        long[] threadIds = Utils.getOrCreateThreadIds(context, recipientSets);
+
+        Uri[] messageUris = new Uri[addresses.length];
+        Exception[] saveErrors = new Exception[addresses.length];
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(BULK_INSERT_BATCH_SIZE);
+        for (int start = 0; start < addresses.length; start += BULK_INSERT_BATCH_SIZE) {
+            int end = Math.min(start + BULK_INSERT_BATCH_SIZE, addresses.length);
+            operations.clear();
+            for (int i = start; i < end; i++) {
+                operations.add(ContentProviderOperation.newInsert(Uri.parse("content://sms/"))
+                        .withValues(buildSmsValues(text, addresses[i], threadIds[i]))
+                        .build());
             }
 
-            sentIntent.putExtra("message_uri", messageUri == null ? "" : messageUri.toString());
-            sentIntent.putExtra(SENT_SMS_BUNDLE, sentMessageParcelable);
+            try {
+                ContentProviderResult[] results = context.getContentResolver()
+                        .applyBatch(Telephony.Sms.CONTENT_URI.getAuthority(), operations);
+                for (int i = 0; i < results.length; i++) {
+                    messageUris[start + i] = results[i].uri;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "failed to save bulk messages " + start + " to " + end
+                        + ", saving them one at a time", e);
+                for (int i = start; i < end; i++) {
+                    try {
+                        messageUris[i] = context.getContentResolver().insert(
+                                Uri.parse("content://sms/"),
+                                buildSmsValues(text, addresses[i], threadIds[i]));
+                    } catch (Exception insertError) {
+                        saveErrors[i] = insertError;
+                    }
+                }
+            }
+        }
 
-            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                flags = flags | PendingIntent.FLAG_IMMUTABLE;
+        TokenBucket pacer = new TokenBucket(messagesPerSecond);
+        int completed = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            if (messageUris[i] == null) {
+                // without a row there is no distinct id for the pending intents to report back on
+                Exception error = saveErrors[i] != null ? saveErrors[i]
+                        : new IllegalStateException("failed to save message");
+                Log.e(TAG, "not sending unsaved bulk message to " + addresses[i], error);
+                completed++;
+                if (listener != null) {
+                    listener.onRecipientFailed(addresses[i], error, completed, addresses.length);
+                }
+                continue;
             }
-            PendingIntent sentPI = PendingIntent.getBroadcast(context, messageId, sentIntent, flags);
 
-            Intent deliveredIntent;
-            if (explicitDeliveredSmsReceiver == null) {
-                deliveredIntent = new Intent(SMS_DELIVERED);
-                BroadcastUtils.addClassName(context, deliveredIntent, SMS_DELIVERED);
-            } else {
-                deliveredIntent = explicitDeliveredSmsReceiver;
+            SendCallbacks.notifyPersisted(messageUris[i], transactionSettings.getDeliveryReports());
+            pacer.acquire();
+            try {
+                dispatchSmsMessage(text, addresses[i], messageUris[i],
+                        sentMessageParcelable, deliveredParcelable);
+                completed++;
+                if (listener != null) {
+                    listener.onRecipientSent(addresses[i], messageUris[i], completed, addresses.length);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "failed to send bulk message to " + addresses[i], e);
+                completed++;
+                if (listener != null) {
+                    listener.onRecipientFailed(addresses[i], e, completed, addresses.length);
+                }
             }
+        }
+    }
+
+    /**
+     * Sends the same text to each address as its own conversation, see
+     * {@link #sendBulkSmsMessages(String, String[], double, Parcelable, Parcelable, BulkSendListener)}.
+     */
+    public void sendBulkSmsMessages(String text, String[] addresses, double messagesPerSecond,
+                                    BulkSendListener listener) throws InterruptedException {
+        sendBulkSmsMessages(text, addresses, messagesPerSecond, new Bundle(), new Bundle(), listener);
+    }
 
-            deliveredIntent.putExtra("message_uri", messageUri == null ? "" : messageUri.toString());
-            deliveredIntent.putExtra(DELIVERED_SMS_BUNDLE, deliveredParcelable);
-            PendingIntent deliveredPI = PendingIntent.getBroadcast(context, messageId, deliveredIntent, flags);
+    /**
+     * Progress of {@link #sendBulkSmsMessages}, called on the sending thread.
+     */
+    public interface BulkSendListener {
+        /**
+         * @param address    is the recipient the message was handed to the SmsManager for
+         * @param messageUri is the saved message
+         * @param completed  is the number of recipients processed so far
+         * @param total      is the number of recipients
+         */
+        void onRecipientSent(String address, Uri messageUri, int completed, int total);
+
+        /**
+         * @param address   is the recipient the message could not be sent to
+         * @param error     is the reason
+         * @param completed is the number of recipients processed so far
+         * @param total     is the number of recipients
+         */
+        void onRecipientFailed(String address, Exception error, int completed, int total);
+    }
 
-            ArrayList<PendingIntent> sPI = new ArrayList<PendingIntent>();
-            ArrayList<PendingIntent> dPI = new ArrayList<PendingIntent>();
+    private ContentValues buildSmsValues(String text, String address, long threadId) {
+        Calendar cal = Calendar.getInstance();
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, address);
+        values.put(Telephony.Sms.BODY, transactionSettings.getStripUnicode() ? StripAccents.stripAccents(text) : text);
+        values.put(Telephony.Sms.DATE, cal.getTimeInMillis() + "");
+        values.put(Telephony.Sms.READ, 1);
+        values.put(Telephony.Sms.TYPE, 4);
+
+        // insert subscription id only if it is a valid one.
+        int subscriptionId = transactionSettings.getSubscriptionId();
+        if (Settings.DEFAULT_SUBSCRIPTION_ID != subscriptionId) {
+            values.put(Telephony.Sms.SUBSCRIPTION_ID, subscriptionId);
+        }
 
-            String body = text;
+        values.put(Telephony.Sms.THREAD_ID, threadId);
+        return values;
+    }
 
-            // edit the body of the text if unicode needs to be stripped
-            if (settings.getStripUnicode()) {
-                body = StripAccents.stripAccents(body);
+    private void dispatchSmsMessage(
+            final String text,
+            final String address,
+            final Uri messageUri,
+            final Parcelable sentMessageParcelable,
+            final Parcelable deliveredParcelable
+    ) throws Exception {
+        // the provider returns content://sms/<_id>, so there is no need to query the id back
+        int messageId = 0;
+        if (messageUri != null) {
+            try {
+                messageId = (int) ContentUris.parseId(messageUri);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "unexpected message uri: " + messageUri, e);
             }
+        }
+        Log.v("send_transaction", "message id: " + messageId);
 
-            if (!settings.getPreText().equals("")) {
-                body = settings.getPreText() + " " + body;
-            }
+        // set up sent and delivered pending intents to be used with message request
+        Intent sentIntent;
+        if (explicitSentSmsReceiver == null) {
+            sentIntent = new Intent(SMS_SENT);
+            BroadcastUtils.addClassName(context, sentIntent, SMS_SENT);
+        } else {
+            sentIntent = explicitSentSmsReceiver;
+        }
 
-            SmsManager smsManager = SmsManagerFactory.createSmsManager(settings);
-            Log.v("send_transaction", "found sms manager");
+        sentIntent.putExtra("message_uri", messageUri == null ? "" : messageUri.toString());
+        sentIntent.putExtra(SENT_SMS_BUNDLE, sentMessageParcelable);
 
-            if (settings.getSplit()) {
-                Log.v("send_transaction", "splitting message");
-                // figure out the length of supported message
-                int[] splitData = SmsMessage.calculateLength(body, false);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            flags = flags | PendingIntent.FLAG_IMMUTABLE;
+        }
+        PendingIntent sentPI = PendingIntent.getBroadcast(context, messageId, sentIntent, flags);
 
-                // we take the current length + the remaining length to get the total number of characters
-                // that message set can support, and then divide by the number of message that will require
-                // to get the length supported by a single message
-                int length = (body.length() + splitData[2]) / splitData[0];
-                Log.v("send_transaction", "length: " + length);
+        Intent deliveredIntent;
+        if (explicitDeliveredSmsReceiver == null) {
+            deliveredIntent = new Intent(SMS_DELIVERED);
+            BroadcastUtils.addClassName(context, deliveredIntent, SMS_DELIVERED);
+        } else {
+            deliveredIntent = explicitDeliveredSmsReceiver;
+        }
 
-                boolean counter = false;
-                if (settings.getSplitCounter() && body.length() > length) {
-                    counter = true;
-                    length -= 6;
-                }
+        deliveredIntent.putExtra("message_uri", messageUri == null ? "" : messageUri.toString());
+        deliveredIntent.putExtra(DELIVERED_SMS_BUNDLE, deliveredParcelable);
+        PendingIntent deliveredPI = PendingIntent.getBroadcast(context, messageId, deliveredIntent, flags);
 
-                // get the split messages
-                String[] textToSend = splitByLength(body, length, counter);
+        ArrayList<PendingIntent> sPI = new ArrayList<PendingIntent>();
+        ArrayList<PendingIntent> dPI = new ArrayList<PendingIntent>();
 
-                // send each message part to each recipient attached to message
-                for (String s : textToSend) {
-                    ArrayList<String> parts = smsManager.divideMessage(s);
+        String body = text;
 
-                    for (int k = 0; k < parts.size(); k++) {
-                        sPI.add(saveMessage ? sentPI : null);
-                        dPI.add(settings.getDeliveryReports() && saveMessage ? deliveredPI : null);
-                    }
+        // edit the body of the text if unicode needs to be stripped
+        if (transactionSettings.getStripUnicode()) {
+            body = StripAccents.stripAccents(body);
+        }
 
-                    Log.v("send_transaction", "sending split message");
-                    smsManager.sendMultipartTextMessage(address, null, parts, sPI, dPI);
-                }
-            } else {
-                Log.v("send_transaction", "sending without splitting");
-                // send the message normally without forcing anything to be split
-                ArrayList<String> parts = smsManager.divideMessage(body);
+        if (!transactionSettings.getPreText().equals("")) {
+            body = transactionSettings.getPreText() + " " + body;
+        }
+
+        SmsManager smsManager = SmsManagerFactory.createSmsManager(transactionSettings);
+        Log.v("send_transaction", "found sms manager");
+        SendCallbacks.notifyComposed(messageUri);
+
+        if (transactionSettings.getSplit()) {
+            Log.v("send_transaction", "splitting message");
+            // figure out the length of supported message
+            int[] splitData = SmsSegmenter.calculateLength(body);
+
+            // we take the current length + the remaining length to get the total number of characters
+            // that message set can support, and then divide by the number of message that will require
+            // to get the length supported by a single message
+            int length = (body.length() + splitData[2]) / splitData[0];
+            Log.v("send_transaction", "length: " + length);
+
+            boolean counter = false;
+            if (transactionSettings.getSplitCounter() && body.length() > length) {
+                counter = true;
+                length -= 6;
+            }
+
+            // get the split messages
+            String[] textToSend = splitByLength(body, length, counter);
 
-                for (int j = 0; j < parts.size(); j++) {
+            // send each message part to each recipient attached to message
+            for (String s : textToSend) {
+                ArrayList<String> parts = smsManager.divideMessage(s);
+
+                for (int k = 0; k < parts.size(); k++) {
                     sPI.add(saveMessage ? sentPI : null);
-                    dPI.add(settings.getDeliveryReports() && saveMessage ? deliveredPI : null);
+                    dPI.add(transactionSettings.getDeliveryReports() && saveMessage ? deliveredPI : null);
                 }
 
-                if (Utils.isDefaultSmsApp(context)) {
-                    try {
-                        Log.v("send_transaction", "sent message");
-                        smsManager.sendMultipartTextMessage(address, null, parts, sPI, dPI);
-                    } catch (Exception e) {
-                        // whoops...
-                        Log.v("send_transaction", "error sending message");
-                        Log.e(TAG, "exception thrown", e);
-                        throw e;
-                    }
-                } else {
-                    // not default app, so just fire it off right away for the hell of it
+                Log.v("send_transaction", "sending split message");
+                smsManager.sendMultipartTextMessage(address, null, parts, sPI, dPI);
+            }
+        } else {
+            Log.v("send_transaction", "sending without splitting");
+            // send the message normally without forcing anything to be split
+            ArrayList<String> parts = smsManager.divideMessage(body);
+
+            for (int j = 0; j < parts.size(); j++) {
+                sPI.add(saveMessage ? sentPI : null);
+                dPI.add(transactionSettings.getDeliveryReports() && saveMessage ? deliveredPI : null);
+            }
+
+            if (Utils.isDefaultSmsApp(context)) {
+                try {
+                    Log.v("send_transaction", "sent message");
                     smsManager.sendMultipartTextMessage(address, null, parts, sPI, dPI);
+                } catch (Exception e) {
+                    // whoops...
+                    Log.v("send_transaction", "error sending message");
+                    Log.e(TAG, "exception thrown", e);
+                    throw e;
                 }
+            } else {
+                // not default app, so just fire it off right away for the hell of it
+                smsManager.sendMultipartTextMessage(address, null, parts, sPI, dPI);
             }
         }
     }
 
+    /**
+     * The carrier's MMS limits for the subscription being sent with, as loaded once per SIM by the
+     * {@link MmsConfigManager}.
+     */
+    private com.android.mms.service_alt.MmsConfig.Overridden getCarrierMmsConfig() {
+        MmsConfigManager manager = MmsConfigManager.getInstance();
+        manager.initIfNeeded(context);
+
+        int subId = transactionSettings.getSubscriptionId();
+        if (subId == Settings.DEFAULT_SUBSCRIPTION_ID) {
+            subId = SmsManager.getDefaultSmsSubscriptionId();
+        }
+
+        com.android.mms.service_alt.MmsConfig config = manager.getMmsConfigBySubId(subId);
+        if (config == null) {
+            config = manager.getMmsConfig();
+        }
+        return new com.android.mms.service_alt.MmsConfig.Overridden(config, null);
+    }
+
     private void sendMmsMessage(
             String text,
             String fromAddress,
@@ -436,14 +783,39 @@ public class Transaction {
         // create the parts to send
         ArrayList<MMSPart> data = new ArrayList<MMSPart>();
 
-        for (int i = 0; i < image.length; i++) {
-            // turn bitmap into byte array to be stored
-            byte[] imageBytes = Message.bitmapToByteArray(image[i]);
+        // the images share whatever the carrier allows once everything else is counted
+        int imageBudget = 0;
+        int maxImageWidth = 0;
+        int maxImageHeight = 0;
+        if (image.length > 0) {
+            com.android.mms.service_alt.MmsConfig.Overridden mmsConfig = getCarrierMmsConfig();
+            if (mmsConfig.hasCarrierImageSizeLimit()) {
+                maxImageWidth = mmsConfig.getMaxImageWidth();
+                maxImageHeight = mmsConfig.getMaxImageHeight();
+            }
+
+            long otherBytes = MMS_OVERHEAD_BYTES;
+            if (parts != null) {
+                for (Message.Part p : parts) {
+                    otherBytes += p.getMedia() == null ? getMediaSize(context, resolveMediaUri(p))
+                            : p.getMedia().length;
+                }
+            }
+            if (text != null) {
+                otherBytes += text.length() * 3;
+            }
+            imageBudget = (int) Math.max(MIN_IMAGE_BYTES,
+                    (mmsConfig.getMaxMessageSize() - otherBytes) / image.length);
+        }
+
+        // turn the bitmaps into byte arrays to be stored
+        byte[][] imageBytes = encodeImages(image, imageBudget, maxImageWidth, maxImageHeight);
 
+        for (int i = 0; i < image.length; i++) {
             MMSPart part = new MMSPart();
             part.mimeType = "image/jpeg";
             part.name = (imageNames != null) ? imageNames[i] : ("image_" + System.currentTimeMillis());
-            part.data = imageBytes;
+            part.data = imageBytes[i];
             data.add(part);
         }
 
@@ -460,6 +832,10 @@ public class Transaction {
                 part.fileName = p.getFileName();
                 part.mimeType = p.getContentType();
                 part.data = p.getMedia();
+                if (part.data == null) {
+                    // streamed by the composer and the persister instead of held in memory
+                    part.Path = resolveMediaUri(p);
+                }
                 data.add(part);
             }
         }
@@ -474,18 +850,40 @@ public class Transaction {
         }
 
         Log.v(TAG, "using lollipop method for sending sms");
-        if (settings.getUseSystemSending()) {
+        if (transactionSettings.getUseSystemSending()) {
             Log.v(TAG, "using system method for sending");
-            sendMmsThroughSystem(context, subject, data, fromAddress, addresses, explicitSentMmsReceiver, save, messageUri, sentMmsParcelable);
+            sendMmsThroughSystem(context, transactionSettings, subject, data, fromAddress, addresses, explicitSentMmsReceiver, save, messageUri, sentMmsParcelable);
         } else {
             try {
-                MessageInfo info = getBytes(context, saveMessage, fromAddress, address.split(getAddressSeparatorRegex()),
+                MessageInfo info = getBytes(context, transactionSettings, saveMessage, fromAddress,
+                        address.split(getAddressSeparatorRegex()),
                         data.toArray(new MMSPart[data.size()]), subject);
-                MmsRequestManager requestManager = new MmsRequestManager(context, info.bytes);
+                SendCallbacks.notifyComposed(info.location);
+
+                // spool the pdu so it isn't held in memory while the network is acquired and
+                // the request is retried, it is streamed from the file on every attempt
+                final File pduFile = MmsRequest.createSpoolFile(context, "send");
+                FileOutputStream out = new FileOutputStream(pduFile);
+                try {
+                    out.write(info.bytes);
+                } catch (IOException e) {
+                    pduFile.delete();
+                    throw e;
+                } finally {
+                    out.close();
+                }
+                info.bytes = null;
+
+                MmsRequestManager requestManager = new MmsRequestManager(context);
                 SendRequest request = new SendRequest(requestManager, Utils.getDefaultSubscriptionId(),
-                        info.location, null, null, null, null);
-                MmsNetworkManager manager = new MmsNetworkManager(context, Utils.getDefaultSubscriptionId());
-                request.execute(context, manager);
+                        info.location, MmsHttpClient.pduSourceOf(pduFile), null, null, null, null);
+                MmsNetworkManager manager = MmsNetworkManager.get(context, Utils.getDefaultSubscriptionId());
+                request.executeAsync(context, manager, new Runnable() {
+                    @Override
+                    public void run() {
+                        pduFile.delete();
+                    }
+                });
             } catch (Exception e) {
                 Log.e(TAG, "error sending mms", e);
                 throw e;
@@ -493,10 +891,104 @@ public class Transaction {
         }
     }
 
-    @SuppressLint("Range")
+    /**
+     * Gets a uri the composer and persister can stream a part from. Media given as a file descriptor
+     * is copied to the cache once, since a descriptor can only be read through once and the same
+     * part may be sent to several recipients.
+     */
+    private Uri resolveMediaUri(Message.Part part) throws IOException {
+        if (part.getMediaUri() != null) {
+            return part.getMediaUri();
+        }
+
+        ParcelFileDescriptor descriptor = part.getMediaDescriptor();
+        if (descriptor == null) {
+            return null;
+        }
+
+        File spooled = spooledMedia.get(part);
+        if (spooled == null) {
+            spooled = new File(context.getCacheDir(), "part." + Math.abs(new Random().nextLong()) + ".dat");
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(spooled);
+                byte[] buffer = new byte[MEDIA_COPY_BUFFER_SIZE];
+                for (int len; (len = in.read(buffer)) != -1; ) {
+                    out.write(buffer, 0, len);
+                }
+            } catch (IOException e) {
+                spooled.delete();
+                throw e;
+            } finally {
+                in.close();
+                if (out != null) {
+                    out.close();
+                }
+            }
+            spooledMedia.put(part, spooled);
+        }
+
+        return Uri.fromFile(spooled);
+    }
+
+    private void deleteSpooledMedia() {
+        for (File file : spooledMedia.values()) {
+            file.delete();
+        }
+        spooledMedia.clear();
+    }
+
+    private static long getMediaSize(Context context, Uri uri) {
+        if (uri == null) {
+            return 0;
+        }
+
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+            long length = descriptor == null ? AssetFileDescriptor.UNKNOWN_LENGTH : descriptor.getLength();
+            return length == AssetFileDescriptor.UNKNOWN_LENGTH ? 0 : length;
+        } catch (IOException e) {
+            Log.e(TAG, "can't get size of " + uri, e);
+            return 0;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static long getPartSize(Context context, MMSPart part) {
+        return part.data != null ? part.data.length : getMediaSize(context, part.Path);
+    }
+
+    private static void setPartData(PduPart pduPart, MMSPart part) {
+        if (part.data != null) {
+            pduPart.setData(part.data);
+        } else {
+            pduPart.setDataUri(part.Path);
+        }
+    }
+
+    /**
+     * Same as {@link #getBytes(Context, Settings, boolean, String, String[], MMSPart[], String)}
+     * with the settings of the last transaction that was created.
+     */
     public static MessageInfo getBytes(Context context, boolean saveMessage, String fromAddress,
                                        String[] recipients, MMSPart[] parts, String subject)
             throws MmsException {
+        return getBytes(context, settings, saveMessage, fromAddress, recipients, parts, subject);
+    }
+
+    @SuppressLint("Range")
+    public static MessageInfo getBytes(Context context, Settings settings, boolean saveMessage,
+                                       String fromAddress, String[] recipients, MMSPart[] parts,
+                                       String subject)
+            throws MmsException {
         final SendReq sendRequest = new SendReq();
 
         // create send request addresses
@@ -541,10 +1033,10 @@ public class Transaction {
                         String contentId = (index == -1) ? part.name
                                 : part.name.substring(0, index);
                         partPdu.setContentId(contentId.getBytes());
-                        partPdu.setData(part.data);
+                        setPartData(partPdu, part);
 
                         pduBody.addPart(partPdu);
-                        size += ((2 * part.name.getBytes().length) + part.mimeType.getBytes().length + part.data.length + contentId.getBytes().length);
+                        size += ((2 * part.name.getBytes().length) + part.mimeType.getBytes().length + getPartSize(context, part) + contentId.getBytes().length);
                     } catch (Exception e) {
                     }
                 }
@@ -589,6 +1081,7 @@ public class Transaction {
             try {
                 PduPersister persister = PduPersister.getPduPersister(context);
                 info.location = persister.persist(sendRequest, Uri.parse("content://mms/outbox"), true, settings.getGroup(), null, settings.getSubscriptionId());
+                SendCallbacks.notifyPersisted(info.location, false);
             } catch (Exception e) {
                 Log.v("sending_mms_library", "error saving mms message");
                 Log.e(TAG, "exception thrown", e);
@@ -620,6 +1113,7 @@ public class Transaction {
 
     private static void sendMmsThroughSystem(
             Context context,
+            Settings settings,
             String subject,
             List<MMSPart> parts,
             String fromAddress,
@@ -633,13 +1127,14 @@ public class Transaction {
             final String fileName = "send." + Math.abs(new Random().nextLong()) + ".dat";
             File mSendFile = new File(context.getCacheDir(), fileName);
 
-            SendReq sendReq = buildPdu(context, fromAddress, addresses, subject, parts);
+            SendReq sendReq = buildPdu(context, settings, fromAddress, addresses, subject, parts);
             Uri messageUri;
             if (save) {
                 // this will be the default behavior if we do not explicitly set the save flag to false
                 PduPersister persister = PduPersister.getPduPersister(context);
                 messageUri = persister.persist(sendReq, Uri.parse("content://mms/outbox"),
                         true, settings.getGroup(), null, settings.getSubscriptionId());
+                SendCallbacks.notifyPersisted(messageUri, false);
             } else {
                 messageUri = existingMessageUri;
                 Log.v(TAG, messageUri.toString());
@@ -650,6 +1145,7 @@ public class Transaction {
                 int rowsUpdated = SqliteWrapper.update(context, context.getContentResolver(), messageUri, values,
                         null, null);
                 Log.v(TAG, "rowsUpdated=" + rowsUpdated);
+                SendCallbacks.notifyPersisted(messageUri, false);
             }
 
             Intent intent;
@@ -701,6 +1197,7 @@ public class Transaction {
             configOverrides.putInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE, MmsConfig.getMaxMessageSize());
 
             if (contentUri != null) {
+                SendCallbacks.notifyComposed(messageUri);
                 SmsManagerFactory.createSmsManager(settings).sendMultimediaMessage(context,
                         contentUri, null, configOverrides, pendingIntent);
             } else {
@@ -717,8 +1214,8 @@ public class Transaction {
         }
     }
 
-    private static SendReq buildPdu(Context context, String fromAddress, String[] recipients, String subject,
-                                    List<MMSPart> parts) {
+    private static SendReq buildPdu(Context context, Settings settings, String fromAddress,
+                                    String[] recipients, String subject, List<MMSPart> parts) {
         final SendReq req = new SendReq();
         // From, per spec
         req.prepareFromAddress(context, fromAddress, settings.getSubscriptionId());
@@ -739,7 +1236,7 @@ public class Transaction {
         int size = 0;
         for (int i = 0; i < parts.size(); i++) {
             MMSPart part = parts.get(i);
-            size += addTextPart(body, part, i);
+            size += addTextPart(context, body, part, i);
         }
 
         // add a SMIL document for compatibility
@@ -772,7 +1269,7 @@ public class Transaction {
         return req;
     }
 
-    private static int addTextPart(PduBody pb, MMSPart p, int id) {
+    private static int addTextPart(Context context, PduBody pb, MMSPart p, int id) {
         String name = p.name;
         final PduPart part = new PduPart();
         // Set Charset if it's a text media.
@@ -787,10 +1284,10 @@ public class Transaction {
         int index = name.lastIndexOf(".");
         String contentId = (index == -1) ? name : name.substring(0, index);
         part.setContentId(contentId.getBytes());
-        part.setData(p.data);
+        setPartData(part, p);
         pb.addPart(part);
 
-        return part.getData().length;
+        return (int) getPartSize(context, p);
     }
 
     public static class MessageInfo {
@@ -852,7 +1349,7 @@ public class Transaction {
             long imageBytes = 0;
 
             for (MMSPart part : parts) {
-                imageBytes += part.data.length;
+                imageBytes += getPartSize(context, part);
             }
 
             mmsValues.put("exp", imageBytes);
@@ -870,7 +1367,9 @@ public class Transaction {
 
             // Create part
             for (MMSPart part : parts) {
-                if (part.mimeType.startsWith("image")) {
+                if (part.data == null) {
+                    Log.v(TAG, "can't save streamed part " + part.Path + " the old way, skipping it");
+                } else if (part.mimeType.startsWith("image")) {
                     createPartImage(context, messageId, part.data, part.mimeType);
                 } else if (part.mimeType.startsWith("text")) {
                     createPartText(context, messageId, new String(part.data, "UTF-8"));
@@ -954,8 +1453,8 @@ public class Transaction {
     public boolean checkMMS(Message message) {
         return message.getImages().length != 0 ||
                 (message.getParts().size() != 0) ||
-                (settings.getSendLongAsMms() && Utils.getNumPages(settings, message.getText()) > settings.getSendLongAsMmsAfter()) ||
-                (message.getAddresses().length > 1 && settings.getGroup()) ||
+                (transactionSettings.getSendLongAsMms() && Utils.getNumPages(transactionSettings, message.getText()) > transactionSettings.getSendLongAsMmsAfter()) ||
+                (message.getAddresses().length > 1 && transactionSettings.getGroup()) ||
                 message.getSubject() != null;
     }
 
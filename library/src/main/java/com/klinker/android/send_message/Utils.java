@@ -5,13 +5,11 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
-import android.net.Network;
 import android.net.Uri;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.telephony.SmsManager;
-import android.telephony.SmsMessage;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
@@ -27,7 +25,9 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -92,38 +92,38 @@ public class Utils {
 
     @TargetApi(Build.VERSION_CODES.M)
     private static <T> T ensureRouteToMmsNetworkMarshmallow(Context context, Task<T> task) throws IOException {
-        final MmsNetworkManager networkManager = new MmsNetworkManager(context.getApplicationContext(), Utils.getDefaultSubscriptionId());
+        final MmsNetworkManager networkManager = MmsNetworkManager.get(context, Utils.getDefaultSubscriptionId());
         final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        Network network = null;
+        MmsNetworkManager.Lease lease = null;
         try {
-            network = networkManager.acquireNetwork();
-            connectivityManager.bindProcessToNetwork(network);
+            lease = networkManager.acquireNetwork();
+            connectivityManager.bindProcessToNetwork(lease.getNetwork());
             return task.run();
         } catch (MmsNetworkException e) {
             throw new IOException(e);
         } finally {
-            if (network != null) {
+            if (lease != null) {
                 connectivityManager.bindProcessToNetwork(null);
             }
-            networkManager.releaseNetwork();
+            networkManager.releaseNetwork(lease);
         }
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private static <T> T ensureRouteToMmsNetworkLollipop(Context context, Task<T> task) throws IOException {
-        final MmsNetworkManager networkManager = new MmsNetworkManager(context.getApplicationContext(), Utils.getDefaultSubscriptionId());
-        Network network = null;
+        final MmsNetworkManager networkManager = MmsNetworkManager.get(context, Utils.getDefaultSubscriptionId());
+        MmsNetworkManager.Lease lease = null;
         try {
-            network = networkManager.acquireNetwork();
-            ConnectivityManager.setProcessDefaultNetwork(network);
+            lease = networkManager.acquireNetwork();
+            ConnectivityManager.setProcessDefaultNetwork(lease.getNetwork());
             return task.run();
         } catch (MmsNetworkException e) {
             throw new IOException(e);
         } finally {
-            if (network != null) {
+            if (lease != null) {
                 ConnectivityManager.setProcessDefaultNetwork(null);
             }
-            networkManager.releaseNetwork();
+            networkManager.releaseNetwork(lease);
         }
     }
 
@@ -283,7 +283,7 @@ public class Utils {
             text = StripAccents.stripAccents(text);
         }
 
-        int[] data = SmsMessage.calculateLength(text, false);
+        int[] data = SmsSegmenter.calculateLength(text);
         return data[0];
     }
 
@@ -308,6 +308,12 @@ public class Utils {
      */
     public static long getOrCreateThreadId(
             Context context, Set<String> recipients) {
+        ThreadIdCache cache = ThreadIdCache.getInstance(context);
+        long threadId = cache.get(context, recipients);
+        if (threadId != -1) {
+            return threadId;
+        }
+
         Uri.Builder uriBuilder = Uri.parse("content://mms-sms/threadID").buildUpon();
 
         for (String recipient : recipients) {
@@ -326,6 +332,7 @@ public class Utils {
                 if (cursor.moveToFirst()) {
                     long id = cursor.getLong(0);
                     cursor.close();
+                    cache.put(recipients, id);
                     return id;
                 } else {
 
@@ -340,6 +347,29 @@ public class Utils {
         //throw new IllegalArgumentException("Unable to find or allocate a thread ID.");
     }
 
+    /**
+     * Gets the current thread_id or creates a new one for each set of recipients, for example
+     * for a mass send. Identical recipient sets are only resolved once.
+     * @param context is the context of the activity or service
+     * @param recipientSets is the list of recipient sets to resolve
+     * @return the thread_ids to use in the database, in the same order as recipientSets
+     */
+    public static long[] getOrCreateThreadIds(Context context, List<Set<String>> recipientSets) {
+        long[] threadIds = new long[recipientSets.size()];
+        HashMap<String, Long> resolved = new HashMap<String, Long>();
+        for (int i = 0; i < threadIds.length; i++) {
+            Set<String> recipients = recipientSets.get(i);
+            String key = ThreadIdCache.getKey(recipients);
+            Long threadId = resolved.get(key);
+            if (threadId == null) {
+                threadId = getOrCreateThreadId(context, recipients);
+                resolved.put(key, threadId);
+            }
+            threadIds[i] = threadId;
+        }
+        return threadIds;
+    }
+
     public static boolean doesThreadIdExist(Context context, long threadId) {
         Uri uri = Uri.parse("content://mms-sms/conversations/" + threadId + "/");
 
@@ -352,7 +382,7 @@ public class Utils {
         }
     }
 
-    private static boolean isEmailAddress(String address) {
+    static boolean isEmailAddress(String address) {
         if (TextUtils.isEmpty(address)) {
             return false;
         }
@@ -376,7 +406,7 @@ public class Utils {
     private static final Pattern NAME_ADDR_EMAIL_PATTERN =
             Pattern.compile("\\s*(\"[^\"]*\"|[^<>\"]+)\\s*<([^<>]+)>\\s*");
 
-    private static String extractAddrSpec(String address) {
+    static String extractAddrSpec(String address) {
         Matcher match = NAME_ADDR_EMAIL_PATTERN.matcher(address);
 
         if (match.matches()) {
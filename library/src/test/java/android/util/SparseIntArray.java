@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.HashMap;
+
+/**
+ * Working stand-in for the framework class, whose methods only return default values in local
+ * unit tests. GsmAlphabet builds its char to septet tables with it, so tests that compare against
+ * GsmAlphabet need the real behaviour. The mockable android.jar comes last on the test classpath,
+ * which lets this class shadow it.
+ */
+public class SparseIntArray {
+    private final HashMap<Integer, Integer> mValues = new HashMap<Integer, Integer>();
+
+    public SparseIntArray() {
+    }
+
+    public SparseIntArray(int initialCapacity) {
+    }
+
+    public void put(int key, int value) {
+        mValues.put(key, value);
+    }
+
+    public int get(int key) {
+        return get(key, 0);
+    }
+
+    public int get(int key, int valueIfKeyNotFound) {
+        Integer value = mValues.get(key);
+        return value != null ? value : valueIfKeyNotFound;
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import com.squareup.okhttp.ConnectionPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What the tests against a server on the loopback interface share: clients that reach it
+ * without an MMS network, the default config and temp files that are deleted afterwards.
+ */
+public class HttpFixture {
+
+    private final MmsConfig.Overridden mConfig = new MmsConfig.Overridden(new MmsConfig(), null);
+    private final List<File> mFiles = Collections.synchronizedList(new ArrayList<File>());
+
+    /**
+     * @param connectionPool null for a new pool on every request
+     */
+    public MmsHttpClient newClient(ConnectionPool connectionPool) {
+        return new MmsHttpClient(null/*context*/, null/*socketFactory*/, new LocalResolver(),
+                connectionPool);
+    }
+
+    public MmsConfig.Overridden getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * @return an empty file, deleted by {@link #tearDown()}
+     */
+    public File newFile() throws IOException {
+        File file = File.createTempFile("download", ".pdu");
+        mFiles.add(file);
+        return file;
+    }
+
+    public void tearDown() {
+        for (File file : mFiles) {
+            file.delete();
+        }
+        mFiles.clear();
+    }
+
+    public static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                assertTrue(count > 0);
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Resolves hosts without an MMS network, the server is on the loopback interface
+     */
+    private static class LocalResolver implements com.squareup.okhttp.internal.Network {
+        @Override
+        public InetAddress[] resolveInetAddresses(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import com.google.android.mms.pdu_alt.GenericPdu;
+import com.google.android.mms.pdu_alt.PduBody;
+import com.google.android.mms.pdu_alt.PduHeaders;
+import com.google.android.mms.pdu_alt.PduParser;
+import com.google.android.mms.pdu_alt.PduPart;
+import com.google.android.mms.pdu_alt.SendReq;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okio.Buffer;
+
+/**
+ * An MMSC on the loopback interface. A SendReq posted to {@link #getMmscUrl()} is answered
+ * with a SendConf and the message can then be retrieved as a RetrieveConf from
+ * {@link #getContentLocation(String)}, the way a recipient would after its notification.
+ * Retrievals honour a Range header so that interrupted downloads can be resumed.
+ *
+ * Latency, error responses and truncated bodies can be injected to see how the client copes.
+ * Errors and truncation hit every n-th response rather than a random one so that runs repeat.
+ */
+public class LoopbackMmsc {
+
+    private static final String MMSC_PATH = "/mms";
+    private static final String CONTENT_LOCATION_PATH = "/mms/";
+    private static final String CONTENT_TYPE_MMS = "application/vnd.wap.mms-message";
+    // well-known short-integer of application/vnd.wap.multipart.mixed
+    private static final int CONTENT_TYPE_MULTIPART_MIXED = 0x80 | 0x23;
+
+    private final MockWebServer mServer = new MockWebServer();
+    private final Map<String, byte[]> mMessages = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicInteger mNextMessageId = new AtomicInteger();
+    private final AtomicInteger mResponseCount = new AtomicInteger();
+
+    private volatile long mLatencyMillis;
+    private volatile int mErrorEvery;
+    private volatile int mErrorCode = 500;
+    private volatile int mTruncateEvery;
+
+    public LoopbackMmsc() {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return inject(handle(request));
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        mServer.start();
+    }
+
+    public void shutdown() throws IOException {
+        mServer.shutdown();
+    }
+
+    public String getMmscUrl() {
+        return mServer.getUrl(MMSC_PATH).toString();
+    }
+
+    public String getContentLocation(String messageId) {
+        return mServer.getUrl(CONTENT_LOCATION_PATH + messageId).toString();
+    }
+
+    /**
+     * @return the requests the server has taken, including those that failed
+     */
+    public int getRequestCount() {
+        return mServer.getRequestCount();
+    }
+
+    /**
+     * Holds back every response body for the given time
+     */
+    public void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * Answers every n-th request with the status code instead of handling it, 0 turns it off
+     */
+    public void setErrorEvery(int n, int statusCode) {
+        mErrorEvery = n;
+        mErrorCode = statusCode;
+    }
+
+    /**
+     * Hangs up halfway through every n-th response body, 0 turns it off
+     */
+    public void setTruncateEvery(int n) {
+        mTruncateEvery = n;
+    }
+
+    private MockResponse handle(RecordedRequest request) {
+        String path = request.getPath();
+        if ("POST".equals(request.getMethod()) && MMSC_PATH.equals(path)) {
+            return send(request.getBody().readByteArray());
+        } else if ("GET".equals(request.getMethod()) && path.startsWith(CONTENT_LOCATION_PATH)) {
+            byte[] retrieveConf = mMessages.get(path.substring(CONTENT_LOCATION_PATH.length()));
+            if (retrieveConf == null) {
+                return new MockResponse().setResponseCode(404);
+            }
+            return resume(pduResponse(retrieveConf), request.getHeader("Range"),
+                    retrieveConf.length);
+        }
+        return new MockResponse().setResponseCode(405);
+    }
+
+    private MockResponse send(byte[] pdu) {
+        GenericPdu parsed = new PduParser(pdu, true/*parseContentDisposition*/).parse();
+        if (!(parsed instanceof SendReq)) {
+            return new MockResponse().setResponseCode(400);
+        }
+        SendReq sendReq = (SendReq) parsed;
+        String messageId = "msg" + mNextMessageId.incrementAndGet();
+        mMessages.put(messageId, retrieveConf(messageId, sendReq.getBody()));
+        return pduResponse(sendConf(sendReq.getTransactionId(), messageId));
+    }
+
+    /**
+     * Serves the rest of the message to a client that already has its start
+     */
+    private static MockResponse resume(MockResponse response, String range, int length) {
+        if (range == null || !range.startsWith("bytes=") || !range.endsWith("-")) {
+            return response;
+        }
+        long from = Long.parseLong(range.substring("bytes=".length(), range.length() - 1));
+        if (from >= length) {
+            return new MockResponse().setResponseCode(416);
+        }
+        Buffer rest = new Buffer();
+        response.getBody().copyTo(rest, from, length - from);
+        return response
+                .setResponseCode(206)
+                .setHeader("Content-Range", "bytes " + from + "-" + (length - 1) + "/" + length)
+                .setBody(rest);
+    }
+
+    private MockResponse inject(MockResponse response) {
+        int count = mResponseCount.incrementAndGet();
+        int errorEvery = mErrorEvery;
+        if (errorEvery > 0 && count % errorEvery == 0) {
+            response = new MockResponse().setResponseCode(mErrorCode);
+        }
+        long latency = mLatencyMillis;
+        if (latency > 0) {
+            response.setBodyDelay(latency, TimeUnit.MILLISECONDS);
+        }
+        int truncateEvery = mTruncateEvery;
+        if (truncateEvery > 0 && count % truncateEvery == 0 && response.getBody() != null) {
+            Buffer body = response.getBody();
+            long length = body.size();
+            Buffer half = new Buffer();
+            body.copyTo(half, 0, length / 2);
+            response.setBody(half)
+                    // set after the body, which sets its own length
+                    .setHeader("Content-Length", length)
+                    .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+        }
+        return response;
+    }
+
+    private static MockResponse pduResponse(byte[] pdu) {
+        return new MockResponse()
+                .setHeader("Content-Type", CONTENT_TYPE_MMS)
+                .setBody(new Buffer().write(pdu));
+    }
+
+    /**
+     * Composes a SendReq from the given text parts, PduComposer needs a context to read parts
+     */
+    public static byte[] sendReq(String transactionId, String to, String... texts) {
+        Encoder pdu = new Encoder();
+        pdu.header(PduHeaders.MESSAGE_TYPE).octet(PduHeaders.MESSAGE_TYPE_SEND_REQ);
+        pdu.header(PduHeaders.TRANSACTION_ID).text(transactionId);
+        pdu.header(PduHeaders.MMS_VERSION).octet(0x80 | PduHeaders.CURRENT_MMS_VERSION);
+        pdu.header(PduHeaders.FROM).octet(1).octet(PduHeaders.FROM_INSERT_ADDRESS_TOKEN);
+        pdu.header(PduHeaders.TO).text(to + "/TYPE=PLMN");
+        pdu.header(PduHeaders.CONTENT_TYPE).octet(CONTENT_TYPE_MULTIPART_MIXED);
+        pdu.uintvar(texts.length);
+        for (String text : texts) {
+            pdu.part("text/plain", text.getBytes());
+        }
+        return pdu.toByteArray();
+    }
+
+    private static byte[] sendConf(byte[] transactionId, String messageId) {
+        Encoder pdu = new Encoder();
+        pdu.header(PduHeaders.MESSAGE_TYPE).octet(PduHeaders.MESSAGE_TYPE_SEND_CONF);
+        pdu.header(PduHeaders.TRANSACTION_ID).text(new String(transactionId));
+        pdu.header(PduHeaders.MMS_VERSION).octet(0x80 | PduHeaders.CURRENT_MMS_VERSION);
+        pdu.header(PduHeaders.RESPONSE_STATUS).octet(PduHeaders.RESPONSE_STATUS_OK);
+        pdu.header(PduHeaders.MESSAGE_ID).text(messageId);
+        return pdu.toByteArray();
+    }
+
+    private static byte[] retrieveConf(String messageId, PduBody body) {
+        Encoder pdu = new Encoder();
+        pdu.header(PduHeaders.MESSAGE_TYPE).octet(PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+        pdu.header(PduHeaders.MMS_VERSION).octet(0x80 | PduHeaders.CURRENT_MMS_VERSION);
+        pdu.header(PduHeaders.MESSAGE_ID).text(messageId);
+        pdu.header(PduHeaders.DATE).longInteger(System.currentTimeMillis() / 1000L);
+        pdu.header(PduHeaders.CONTENT_TYPE).octet(CONTENT_TYPE_MULTIPART_MIXED);
+        pdu.uintvar(body.getPartsNum());
+        for (int i = 0; i < body.getPartsNum(); i++) {
+            PduPart part = body.getPart(i);
+            pdu.part(new String(part.getContentType()), part.getData());
+        }
+        return pdu.toByteArray();
+    }
+
+    /**
+     * Just enough of the WSP encoding for the PDUs above
+     */
+    private static class Encoder {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        Encoder header(int field) {
+            return octet(field);
+        }
+
+        Encoder octet(int value) {
+            mOut.write(value);
+            return this;
+        }
+
+        Encoder text(String value) {
+            byte[] bytes = value.getBytes();
+            mOut.write(bytes, 0, bytes.length);
+            return octet(0);
+        }
+
+        Encoder longInteger(long value) {
+            int length = 0;
+            for (long rest = value; rest != 0; rest >>>= 8) {
+                length++;
+            }
+            octet(Math.max(length, 1));
+            for (int shift = (Math.max(length, 1) - 1) * 8; shift >= 0; shift -= 8) {
+                octet((int) (value >>> shift) & 0xFF);
+            }
+            return this;
+        }
+
+        Encoder uintvar(long value) {
+            int shift = 0;
+            while ((value >>> (shift + 7)) != 0) {
+                shift += 7;
+            }
+            for (; shift > 0; shift -= 7) {
+                octet(0x80 | (int) (value >>> shift) & 0x7F);
+            }
+            return octet((int) value & 0x7F);
+        }
+
+        Encoder part(String contentType, byte[] data) {
+            uintvar(contentType.length() + 1);
+            uintvar(data.length);
+            text(contentType);
+            mOut.write(data, 0, data.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return mOut.toByteArray();
+        }
+    }
+}
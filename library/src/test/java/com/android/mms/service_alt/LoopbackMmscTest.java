@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import com.android.mms.service_alt.exception.MmsHttpException;
+import com.google.android.mms.pdu_alt.GenericPdu;
+import com.google.android.mms.pdu_alt.PduHeaders;
+import com.google.android.mms.pdu_alt.PduParser;
+import com.google.android.mms.pdu_alt.RetrieveConf;
+import com.google.android.mms.pdu_alt.SendConf;
+import com.squareup.okhttp.ConnectionPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends and retrieves messages through a {@link LoopbackMmsc}. The concurrent run doubles as a
+ * load harness and prints the latency percentiles and throughput it saw.
+ * <p/>
+ * The requests go straight to {@link MmsHttpClient}: MmsRequest and the queue in
+ * MmsNetworkManager need a ConnectivityManager, APN settings and the radios, none of which the
+ * jvm tests have. The concurrent run stands in for them with RequestScheduler, the same backoff
+ * and a shared ConnectionPool.
+ */
+public class LoopbackMmscTest {
+
+    private static final int MESSAGES = 64;
+    // Close to a quarter of the responses are faulted in the concurrent run, so this many
+    // attempts are needed for none of the sends and retrievals to run out of them
+    private static final int ATTEMPTS = 10;
+    private static final int RETRY_DELAY_MILLIS = 20;
+
+    private final HttpFixture mFixture = new HttpFixture();
+    private LoopbackMmsc mMmsc;
+    private MmsHttpClient mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        mMmsc = new LoopbackMmsc();
+        mMmsc.start();
+        mClient = mFixture.newClient(null/*connectionPool*/);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mMmsc.shutdown();
+        mFixture.tearDown();
+    }
+
+    @Test
+    public void sentMessageCanBeRetrieved() throws Exception {
+        SendConf sendConf = send(LoopbackMmsc.sendReq("T1", "+15555550100", "hello", "world"));
+        assertEquals(PduHeaders.RESPONSE_STATUS_OK, sendConf.getResponseStatus());
+        assertEquals("T1", new String(sendConf.getTransactionId()));
+
+        RetrieveConf retrieveConf = retrieve(new String(sendConf.getMessageId()));
+        assertEquals(2, retrieveConf.getBody().getPartsNum());
+        assertEquals("hello", new String(retrieveConf.getBody().getPart(0).getData()));
+        assertEquals("world", new String(retrieveConf.getBody().getPart(1).getData()));
+    }
+
+    @Test
+    public void rejectsWhatIsNotASendReq() {
+        MmsHttpException e = sendExpectingFailure(new byte[] { 1, 2, 3 });
+        assertEquals(400, e.getStatusCode());
+    }
+
+    @Test
+    public void injectsErrors() throws Exception {
+        mMmsc.setErrorEvery(2, 503);
+        byte[] pdu = LoopbackMmsc.sendReq("T1", "+15555550100", "hello");
+
+        send(pdu);
+        MmsHttpException e = sendExpectingFailure(pdu);
+        assertEquals(503, e.getStatusCode());
+        send(pdu);
+    }
+
+    @Test
+    public void truncatedRetrievalResumes() throws Exception {
+        SendConf sendConf = send(LoopbackMmsc.sendReq("T1", "+15555550100", "hello"));
+        mMmsc.setTruncateEvery(2);
+        File file = mFixture.newFile();
+        String location = mMmsc.getContentLocation(new String(sendConf.getMessageId()));
+
+        try {
+            download(location, file);
+            fail("download should have been cut short");
+        } catch (MmsHttpException expected) {
+        }
+        assertTrue(file.length() > 0);
+        download(location, file);
+        RetrieveConf retrieveConf = (RetrieveConf) parse(HttpFixture.readFile(file));
+        assertEquals("hello", new String(retrieveConf.getBody().getPart(0).getData()));
+    }
+
+    @Test
+    public void concurrentSendsAndRetrievals() throws Exception {
+        mMmsc.setLatency(5);
+        mMmsc.setErrorEvery(11, 503);
+        mMmsc.setTruncateEvery(7);
+        // shared by every request, the way the network manager shares its pool
+        mClient = mFixture.newClient(new ConnectionPool(8/*maxIdleConnections*/,
+                60 * 1000/*keepAliveDurationMs*/));
+
+        final List<Long> sendNanos = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> retrieveNanos = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch done = new CountDownLatch(MESSAGES);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            new Delivery(i, sendNanos, retrieveNanos, failures, done).start();
+        }
+        assertTrue("deliveries did not finish", done.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        for (Throwable failure : failures) {
+            throw new AssertionError(failure);
+        }
+
+        // faults were injected, so some requests had to be retried
+        assertTrue(mMmsc.getRequestCount() > 2 * MESSAGES);
+        System.out.println(String.format(
+                "%d messages in %d ms, %.1f messages/s, %d requests",
+                MESSAGES, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                MESSAGES * 1e9 / elapsed, mMmsc.getRequestCount()));
+        System.out.println(report("send", sendNanos));
+        System.out.println(report("retrieve", retrieveNanos));
+    }
+
+    private SendConf send(byte[] pdu) throws MmsHttpException {
+        byte[] response = mClient.execute(mMmsc.getMmscUrl(), pdu, MmsHttpClient.METHOD_POST,
+                false/*isProxySet*/, null/*proxyHost*/, 0/*proxyPort*/, mFixture.getConfig());
+        GenericPdu sendConf = parse(response);
+        assertTrue(sendConf instanceof SendConf);
+        return (SendConf) sendConf;
+    }
+
+    private MmsHttpException sendExpectingFailure(byte[] pdu) {
+        try {
+            send(pdu);
+        } catch (MmsHttpException e) {
+            return e;
+        }
+        fail("send should have failed");
+        return null;
+    }
+
+    private RetrieveConf retrieve(String messageId) throws Exception {
+        File file = mFixture.newFile();
+        download(mMmsc.getContentLocation(messageId), file);
+        GenericPdu retrieveConf = parse(HttpFixture.readFile(file));
+        assertTrue(retrieveConf instanceof RetrieveConf);
+        return (RetrieveConf) retrieveConf;
+    }
+
+    private void download(String location, File file) throws MmsHttpException {
+        mClient.download(location, false/*isProxySet*/, null/*proxyHost*/, 0/*proxyPort*/,
+                mFixture.getConfig(), file);
+    }
+
+    private static GenericPdu parse(byte[] pdu) {
+        GenericPdu parsed = new PduParser(pdu, true/*parseContentDisposition*/).parse();
+        assertNotNull(parsed);
+        return parsed;
+    }
+
+    private static String report(String name, List<Long> nanos) {
+        List<Long> sorted = new ArrayList<Long>(nanos);
+        Collections.sort(sorted);
+        return String.format("%s: %d requests, p50 %.1f ms, p99 %.1f ms", name, sorted.size(),
+                percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6);
+    }
+
+    private static long percentile(List<Long> sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0));
+    }
+
+    /**
+     * Sends one message and then retrieves it, each attempt on the request threads. A failed
+     * attempt is retried through {@link RequestScheduler} after the jittered, doubling wait
+     * MmsRequest uses, so a delivery holds no thread while it backs off.
+     */
+    private class Delivery implements Runnable {
+        private final String mText;
+        private final byte[] mPdu;
+        private final List<Long> mSendNanos;
+        private final List<Long> mRetrieveNanos;
+        private final List<Throwable> mFailures;
+        private final CountDownLatch mDone;
+        // Set once the message is sent, the retrieval starts over with its own attempts
+        private String mLocation;
+        private File mFile;
+        private int mAttempts;
+
+        Delivery(int index, List<Long> sendNanos, List<Long> retrieveNanos,
+                List<Throwable> failures, CountDownLatch done) {
+            mText = "message " + index;
+            mPdu = LoopbackMmsc.sendReq("T" + index, "+15555550100", mText);
+            mSendNanos = sendNanos;
+            mRetrieveNanos = retrieveNanos;
+            mFailures = failures;
+            mDone = done;
+        }
+
+        void start() {
+            RequestScheduler.submit(this);
+        }
+
+        @Override
+        public void run() {
+            final List<Long> nanos = mLocation == null ? mSendNanos : mRetrieveNanos;
+            mAttempts++;
+            long begin = System.nanoTime();
+            try {
+                if (mLocation == null) {
+                    SendConf sendConf = send(mPdu);
+                    nanos.add(System.nanoTime() - begin);
+                    mLocation = mMmsc.getContentLocation(new String(sendConf.getMessageId()));
+                    mFile = mFixture.newFile();
+                    mAttempts = 0;
+                    RequestScheduler.submit(this);
+                    return;
+                }
+                download(mLocation, mFile);
+                nanos.add(System.nanoTime() - begin);
+                RetrieveConf retrieveConf = (RetrieveConf) parse(HttpFixture.readFile(mFile));
+                assertEquals(mText, new String(retrieveConf.getBody().getPart(0).getData()));
+                mDone.countDown();
+            } catch (MmsHttpException e) {
+                nanos.add(System.nanoTime() - begin);
+                if (mAttempts >= ATTEMPTS) {
+                    finishWith(e);
+                    return;
+                }
+                RequestScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        RequestScheduler.submit(Delivery.this);
+                    }
+                }, MmsRequest.getRetryDelay(RETRY_DELAY_MILLIS, mAttempts));
+            } catch (Throwable t) {
+                finishWith(t);
+            }
+        }
+
+        private void finishWith(Throwable failure) {
+            mFailures.add(failure);
+            mDone.countDown();
+        }
+    }
+}
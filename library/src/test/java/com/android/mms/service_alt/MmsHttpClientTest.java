@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import com.android.mms.service_alt.exception.MmsHttpException;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MmsHttpClientTest {
+
+    private static final int MESSAGE_SIZE = 200 * 1024;
+    private static final int DROPPED_AFTER = 70 * 1024;
+
+    private final byte[] mMessage = new byte[MESSAGE_SIZE];
+    private final HttpFixture mFixture = new HttpFixture();
+    private MockWebServer mServer;
+    private MmsHttpClient mClient;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < mMessage.length; i++) {
+            mMessage[i] = (byte) (i * 31);
+        }
+        mServer = new MockWebServer();
+        mServer.start();
+        mClient = mFixture.newClient(null/*connectionPool*/);
+        mFile = mFixture.newFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        mFixture.tearDown();
+    }
+
+    @Test
+    public void resumesWithRangeAfterConnectionDrops() throws Exception {
+        mServer.enqueue(droppedResponse());
+        mServer.enqueue(new MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range",
+                        "bytes " + DROPPED_AFTER + "-" + (MESSAGE_SIZE - 1) + "/" + MESSAGE_SIZE)
+                .setBody(slice(DROPPED_AFTER, MESSAGE_SIZE)));
+
+        downloadExpectingFailure();
+        assertEquals(DROPPED_AFTER, mFile.length());
+        RecordedRequest first = mServer.takeRequest();
+        assertNull(first.getHeader("Range"));
+
+        assertEquals(MESSAGE_SIZE, download());
+        RecordedRequest second = mServer.takeRequest();
+        assertEquals("bytes=" + DROPPED_AFTER + "-", second.getHeader("Range"));
+        assertEquals("identity", second.getHeader("Accept-Encoding"));
+        assertArrayEquals(mMessage, HttpFixture.readFile(mFile));
+    }
+
+    @Test
+    public void resumesMoreThanOnce() throws Exception {
+        mServer.enqueue(droppedResponse());
+        mServer.enqueue(new MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range",
+                        "bytes " + DROPPED_AFTER + "-" + (MESSAGE_SIZE - 1) + "/" + MESSAGE_SIZE)
+                .setBody(slice(DROPPED_AFTER, 2 * DROPPED_AFTER))
+                .setHeader("Content-Length", MESSAGE_SIZE - DROPPED_AFTER)
+                .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+        mServer.enqueue(new MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range",
+                        "bytes " + 2 * DROPPED_AFTER + "-" + (MESSAGE_SIZE - 1) + "/*")
+                .setBody(slice(2 * DROPPED_AFTER, MESSAGE_SIZE)));
+
+        downloadExpectingFailure();
+        downloadExpectingFailure();
+        assertEquals(2 * DROPPED_AFTER, mFile.length());
+
+        assertEquals(MESSAGE_SIZE, download());
+        mServer.takeRequest();
+        mServer.takeRequest();
+        assertEquals("bytes=" + 2 * DROPPED_AFTER + "-", mServer.takeRequest().getHeader("Range"));
+        assertArrayEquals(mMessage, HttpFixture.readFile(mFile));
+    }
+
+    @Test
+    public void startsOverWhenServerIgnoresRange() throws Exception {
+        mServer.enqueue(droppedResponse());
+        mServer.enqueue(new MockResponse().setBody(slice(0, MESSAGE_SIZE)));
+
+        downloadExpectingFailure();
+        assertEquals(MESSAGE_SIZE, download());
+        assertArrayEquals(mMessage, HttpFixture.readFile(mFile));
+    }
+
+    @Test
+    public void rejectsRangeThatDoesNotContinueTheFile() throws Exception {
+        mServer.enqueue(droppedResponse());
+        mServer.enqueue(new MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range", "bytes 0-" + (MESSAGE_SIZE - 1) + "/" + MESSAGE_SIZE)
+                .setBody(slice(0, MESSAGE_SIZE)));
+
+        downloadExpectingFailure();
+        MmsHttpException e = downloadExpectingFailure();
+        assertEquals(206, e.getStatusCode());
+        // what was downloaded before is kept for the next attempt
+        assertEquals(DROPPED_AFTER, mFile.length());
+    }
+
+    @Test
+    public void reportsUnsatisfiableRange() throws Exception {
+        mServer.enqueue(droppedResponse());
+        mServer.enqueue(new MockResponse().setResponseCode(416));
+
+        downloadExpectingFailure();
+        MmsHttpException e = downloadExpectingFailure();
+        assertEquals(416, e.getStatusCode());
+    }
+
+    @Test
+    public void burstOfSendsReusesConnectionsFromTheSharedPool() throws Exception {
+        final int burst = 10;
+        MmsHttpClient client = mFixture.newClient(new ConnectionPool(1/*maxIdleConnections*/,
+                60 * 1000/*keepAliveDurationMs*/));
+        for (int i = 0; i < burst; i++) {
+            mServer.enqueue(new MockResponse().setBody("conf " + i));
+        }
+
+        byte[] pdu = Arrays.copyOf(mMessage, 1024);
+        for (int i = 0; i < burst; i++) {
+            byte[] response = client.execute(mServer.getUrl("/mms").toString(), pdu,
+                    MmsHttpClient.METHOD_POST, false/*isProxySet*/, null/*proxyHost*/,
+                    0/*proxyPort*/, mFixture.getConfig());
+            assertEquals("conf " + i, new String(response));
+        }
+
+        // the sequence number counts the requests made on the same connection, so every
+        // send went over the one opened by the first
+        for (int i = 0; i < burst; i++) {
+            assertEquals(i, mServer.takeRequest().getSequenceNumber());
+        }
+    }
+
+    /**
+     * Announces the whole message but hangs up partway through the body
+     */
+    private MockResponse droppedResponse() {
+        return new MockResponse()
+                .setBody(slice(0, DROPPED_AFTER))
+                // set after the body, which sets its own length
+                .setHeader("Content-Length", MESSAGE_SIZE)
+                .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+    }
+
+    private long download() throws MmsHttpException {
+        return mClient.download(mServer.getUrl("/mms").toString(), false/*isProxySet*/,
+                null/*proxyHost*/, 0/*proxyPort*/, mFixture.getConfig(), mFile);
+    }
+
+    private MmsHttpException downloadExpectingFailure() {
+        try {
+            download();
+        } catch (MmsHttpException e) {
+            return e;
+        }
+        fail("download should have failed");
+        return null;
+    }
+
+    private Buffer slice(int from, int to) {
+        return new Buffer().write(Arrays.copyOfRange(mMessage, from, to));
+    }
+}
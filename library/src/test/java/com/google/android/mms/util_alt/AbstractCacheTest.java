@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AbstractCacheTest {
+
+    // AbstractCache.MAX_CACHED_ITEMS
+    private static final int CAPACITY = 500;
+
+    private TestCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new TestCache();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        fill(CAPACITY);
+        assertNotNull(mCache.get(0));
+
+        assertTrue(mCache.put(CAPACITY, "new"));
+        assertEquals(CAPACITY, mCache.size());
+        assertNotNull(mCache.get(0));
+        assertNull(mCache.get(1));
+
+        mCache.put(CAPACITY + 1, "new");
+        mCache.put(CAPACITY + 2, "new");
+        assertNull(mCache.get(2));
+        assertNull(mCache.get(3));
+        assertNotNull(mCache.get(4));
+        assertEquals(keys(1, 2, 3), mCache.evicted);
+    }
+
+    @Test
+    public void skipsCandidatesUsedSinceTheyWereCollected() {
+        fill(CAPACITY);
+        // the scan for this eviction collects a batch of the eldest entries
+        mCache.put(CAPACITY, "new");
+        assertNull(mCache.get(0));
+
+        // 1 is in the batch but is no longer among the eldest
+        assertNotNull(mCache.get(1));
+        mCache.put(CAPACITY + 1, "new");
+        assertNotNull(mCache.get(1));
+        assertNull(mCache.get(2));
+    }
+
+    @Test
+    public void keepsTheWeightWithinTheBound() {
+        mCache.setMaxWeight(100);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(mCache.put(i, "thirty-characters-long-value.."));
+            assertTrue(mCache.getWeight() <= 100);
+        }
+        // three fit, the rest were evicted eldest first
+        assertEquals(3, mCache.size());
+        assertEquals(90, mCache.getWeight());
+        assertNotNull(mCache.get(7));
+        assertNotNull(mCache.get(8));
+        assertNotNull(mCache.get(9));
+
+        mCache.purge(8);
+        assertEquals(60, mCache.getWeight());
+        mCache.put(9, "ten chars!");
+        assertEquals(40, mCache.getWeight());
+    }
+
+    @Test
+    public void refusesEntriesHeavierThanTheWholeCache() {
+        mCache.setMaxWeight(10);
+        assertTrue(mCache.put(1, "small"));
+        assertFalse(mCache.put(2, "more than ten characters"));
+        assertNotNull(mCache.get(1));
+        assertEquals(1, mCache.getStats().getRefusedPutCount());
+    }
+
+    @Test
+    public void shrinksWhenTheBoundIsLowered() {
+        for (int i = 0; i < 10; i++) {
+            mCache.put(i, "0123456789");
+        }
+        mCache.setMaxWeight(35);
+        assertEquals(3, mCache.size());
+        assertEquals(keys(0, 1, 2, 3, 4, 5, 6), mCache.evicted);
+
+        // a trim is not remembered, a later put may grow the cache back to the bound
+        mCache.trimToWeight(0);
+        assertEquals(0, mCache.size());
+        assertEquals(0, mCache.getWeight());
+        mCache.put(1, "0123456789");
+        mCache.put(2, "0123456789");
+        assertEquals(20, mCache.getWeight());
+    }
+
+    @Test
+    public void countsHitsMissesAndEvictions() {
+        fill(CAPACITY + 5);
+        mCache.get(CAPACITY);
+        mCache.get(0);
+        mCache.get(null);
+        mCache.recordLoad(1000);
+        mCache.recordWait();
+
+        CacheStats stats = mCache.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(5, stats.getEvictionCount());
+        assertEquals(1, stats.getLoadCount());
+        assertEquals(1000, stats.getTotalLoadTimeNanos());
+        assertEquals(1, stats.getWaitCount());
+        assertEquals(CAPACITY, stats.getItemCount());
+
+        mCache.resetStats();
+        assertEquals(0, mCache.getStats().getHitCount());
+        assertEquals(CAPACITY, mCache.getStats().getItemCount());
+    }
+
+    /**
+     * Replays scrolling through a long conversation: mostly down a few messages at a time,
+     * sometimes back up, now and then a jump elsewhere. Every miss is loaded and cached the
+     * way PduPersister.load does. A cache that stops taking entries once full, as this one
+     * did before it evicted, is replayed alongside for comparison.
+     */
+    @Test
+    public void replaysScrolling() {
+        final int messages = 5000;
+        final int visible = 12;
+        Random random = new Random(42);
+        Map<Integer, String> refusing = new HashMap<Integer, String>();
+        long refusingHits = 0;
+        long lookups = 0;
+
+        int top = 0;
+        for (int step = 0; step < 50000; step++) {
+            int move = random.nextInt(100);
+            if (move < 70) {
+                top += 1 + random.nextInt(5);
+            } else if (move < 95) {
+                top -= 1 + random.nextInt(5);
+            } else {
+                top = random.nextInt(messages);
+            }
+            top = Math.max(0, Math.min(top, messages - visible));
+
+            for (int i = top; i < top + visible; i++) {
+                lookups++;
+                if (mCache.get(i) == null) {
+                    mCache.recordLoad(0);
+                    mCache.put(i, "message");
+                }
+                if (refusing.containsKey(i)) {
+                    refusingHits++;
+                } else if (refusing.size() < CAPACITY) {
+                    refusing.put(i, "message");
+                }
+            }
+        }
+
+        CacheStats stats = mCache.getStats();
+        double refusingHitRate = (double) refusingHits / lookups;
+        System.out.println(String.format("scroll replay: %d lookups, hit rate %.3f (%.3f when "
+                + "refusing puts once full), %s", lookups, stats.getHitRate(), refusingHitRate,
+                stats));
+        assertEquals(lookups, stats.getHitCount() + stats.getMissCount());
+        assertEquals(CAPACITY, mCache.size());
+        assertTrue(stats.getHitRate() > 0.8);
+        assertTrue(stats.getHitRate() > refusingHitRate + 0.2);
+    }
+
+    private void fill(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(mCache.put(i, "value"));
+        }
+    }
+
+    private static List<Integer> keys(Integer... keys) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (Integer key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+
+    /**
+     * Weighs a value by its length and records the evictions in order
+     */
+    private static class TestCache extends AbstractCache<Integer, String> {
+        final List<Integer> evicted = new ArrayList<Integer>();
+
+        @Override
+        protected int weightOf(Integer key, String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void onEntryEvicted(Integer key, String value) {
+            evicted.add(key);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import com.android.internal.telephony.GsmAlphabet;
+import com.android.internal.telephony.SmsConstants;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SmsSegmenterTest {
+
+    private static final String CJK = "\u4e2d";
+    private static final String EMOJI = "\ud83d\ude00";
+    private static final String EXTENSION = "^{}\\[~]|\u20ac\u000c";
+    private static final String NOT_GSM = "\u0105\u015b\u0142\u00e2\u00ea\u0107";
+
+    @Test
+    public void countsLikeGsmAlphabet() {
+        Random random = new Random(40);
+        for (int n = 0; n < 200000; n++) {
+            String text = randomText(random, random.nextInt(400));
+            SmsSegmenter segmenter = new SmsSegmenter();
+            segmenter.append(text);
+
+            int septets = GsmAlphabet.countGsmSeptetsUsingTables(text, false, 0, 0);
+            if (septets == -1) {
+                assertEquals(text, SmsConstants.ENCODING_16BIT, segmenter.getEncoding());
+                assertEquals(text, text.length(), segmenter.getCodeUnitCount());
+            } else {
+                assertEquals(text, SmsConstants.ENCODING_7BIT, segmenter.getEncoding());
+                assertEquals(text, septets, segmenter.getCodeUnitCount());
+            }
+        }
+    }
+
+    @Test
+    public void singleMessages() {
+        assertArrayEquals(new int[]{1, 160, 0, SmsConstants.ENCODING_7BIT},
+                SmsSegmenter.calculateLength(repeat("a", 160)));
+        assertArrayEquals(new int[]{1, 10, 150, SmsConstants.ENCODING_7BIT},
+                SmsSegmenter.calculateLength(repeat("{", 5)));
+        assertArrayEquals(new int[]{1, 70, 0, SmsConstants.ENCODING_16BIT},
+                SmsSegmenter.calculateLength(repeat(CJK, 70)));
+        assertArrayEquals(new int[]{1, 0, 160, SmsConstants.ENCODING_7BIT},
+                SmsSegmenter.calculateLength(""));
+    }
+
+    @Test
+    public void segmentStarts() {
+        assertStarts(repeat("a", 161), 0, 153);
+        assertStarts(repeat("a", 400), 0, 153, 306);
+        // the escape and the extension char stay in the same segment
+        assertStarts(repeat("a", 152) + "{" + repeat("a", 10), 0, 152);
+        assertStarts(repeat(CJK, 71), 0, 67);
+        // a surrogate pair is never split
+        assertStarts(repeat(CJK, 66) + EMOJI + repeat(CJK, 10), 0, 66);
+        assertStarts(repeat(CJK, 133) + EMOJI, 0, 67, 133);
+        // one unencodable char turns everything into UCS-2
+        assertStarts(repeat("a", 150) + "\u0105", 0, 67, 134);
+    }
+
+    @Test
+    public void remainingInTheLastSegment() {
+        SmsSegmenter segmenter = new SmsSegmenter();
+        segmenter.append(repeat("a", 161));
+        assertEquals(2, segmenter.getMessageCount());
+        assertEquals(145, segmenter.getCodeUnitsRemaining());
+
+        segmenter.append(repeat(CJK, 1));
+        assertEquals(3, segmenter.getMessageCount());
+        assertEquals(67 * 3 - 162, segmenter.getCodeUnitsRemaining());
+    }
+
+    @Test
+    public void surrogatePairSplitAcrossUpdates() {
+        String text = repeat(CJK, 133) + EMOJI;
+        SmsSegmenter segmenter = new SmsSegmenter();
+        segmenter.update(text.substring(0, text.length() - 1));
+        segmenter.update(text);
+        assertArrayEquals(new int[]{0, 67, 133}, segmenter.getSegmentStarts());
+
+        segmenter = new SmsSegmenter();
+        segmenter.append(text, 0, text.length() - 1);
+        segmenter.append(text, text.length() - 1, text.length());
+        assertArrayEquals(new int[]{0, 67, 133}, segmenter.getSegmentStarts());
+    }
+
+    @Test
+    public void updatesMatchCountingAtOnce() {
+        Random random = new Random(41);
+        for (int n = 0; n < 20000; n++) {
+            String text = randomText(random, random.nextInt(400));
+            SmsSegmenter typed = new SmsSegmenter();
+            // typed in a few pieces, cutting anywhere including inside a surrogate pair
+            int typedUpTo = 0;
+            while (typedUpTo < text.length()) {
+                typedUpTo += 1 + random.nextInt(Math.min(20, text.length() - typedUpTo));
+                typed.update(text.substring(0, typedUpTo));
+            }
+
+            assertSame(text, typed);
+        }
+    }
+
+    @Test
+    public void updateStartsOverWhenTheTextWasEdited() {
+        SmsSegmenter segmenter = new SmsSegmenter();
+        segmenter.update(repeat(CJK, 100));
+        segmenter.update(repeat("a", 200));
+        assertSame(repeat("a", 200), segmenter);
+
+        segmenter.update(repeat("a", 100));
+        assertSame(repeat("a", 100), segmenter);
+        segmenter.update(repeat("a", 50) + "b" + repeat("a", 100));
+        assertSame(repeat("a", 50) + "b" + repeat("a", 100), segmenter);
+    }
+
+    private static void assertSame(String text, SmsSegmenter segmenter) {
+        SmsSegmenter once = new SmsSegmenter();
+        once.append(text);
+        assertEquals(text, once.getEncoding(), segmenter.getEncoding());
+        assertEquals(text, once.getCodeUnitCount(), segmenter.getCodeUnitCount());
+        assertEquals(text, once.getMessageCount(), segmenter.getMessageCount());
+        assertEquals(text, once.getCodeUnitsRemaining(), segmenter.getCodeUnitsRemaining());
+        assertArrayEquals(text, once.getSegmentStarts(), segmenter.getSegmentStarts());
+    }
+
+    private static void assertStarts(String text, int... starts) {
+        SmsSegmenter segmenter = new SmsSegmenter();
+        segmenter.append(text);
+        assertArrayEquals(starts, segmenter.getSegmentStarts());
+        assertEquals(starts.length, segmenter.getMessageCount());
+    }
+
+    /**
+     * Mostly the default alphabet, with extension chars and escapes thrown in. Half of the texts
+     * also get chars that need UCS-2, including surrogate pairs.
+     */
+    private static String randomText(Random random, int length) {
+        boolean gsmOnly = random.nextBoolean();
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            int kind = random.nextInt(100);
+            if (kind < 75) {
+                text.append(GsmAlphabet.gsmToChar(random.nextInt(128)));
+            } else if (kind < 90) {
+                text.append(EXTENSION.charAt(random.nextInt(EXTENSION.length())));
+            } else if (kind < 92) {
+                text.append((char) GsmAlphabet.GSM_EXTENDED_ESCAPE);
+            } else if (gsmOnly) {
+                text.append(' ');
+            } else if (kind < 96) {
+                text.append(NOT_GSM.charAt(random.nextInt(NOT_GSM.length())));
+            } else if (kind < 98) {
+                text.append(CJK);
+            } else {
+                text.append(EMOJI);
+            }
+        }
+        return text.toString();
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder repeated = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            repeated.append(s);
+        }
+        return repeated.toString();
+    }
+}
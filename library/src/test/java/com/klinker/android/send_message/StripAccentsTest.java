@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class StripAccentsTest {
+
+    // long enough that any text with it is more than one message, so the accents get stripped
+    private static final String PADDING = repeat('a', 200);
+
+    @Test
+    public void everyCharacterMatchesReplaceAllChain() {
+        String characters = StripAccents.characters;
+        for (int i = 0; i < characters.length(); i++) {
+            String text = PADDING + characters.charAt(i);
+            assertEquals("char " + i + " (" + characters.charAt(i) + ")",
+                    legacyStripAccents(text), StripAccents.stripAccents(text));
+        }
+    }
+
+    @Test
+    public void wholeTableMatchesReplaceAllChain() {
+        String text = PADDING + StripAccents.characters + " " + StripAccents.gsm;
+        String expected = legacyStripAccents(text);
+
+        assertNotEquals(text, expected);
+        assertEquals(expected, StripAccents.stripAccents(text));
+    }
+
+    @Test
+    public void singleMessageIsLeftAlone() {
+        String text = "\u03B1\u00E7";
+        assertSame(text, StripAccents.stripAccents(text));
+    }
+
+    @Test
+    public void textWithoutAccentsIsSameInstance() {
+        String text = PADDING + "\u20AC";
+        assertSame(text, StripAccents.stripAccents(text));
+    }
+
+    /**
+     * How {@link StripAccents#stripAccents(String)} worked before it was table driven.
+     */
+    private static String legacyStripAccents(String s) {
+        int[] messageData = SmsSegmenter.calculateLength(s);
+
+        if (messageData[0] != 1) {
+            for (int i = 0; i < StripAccents.characters.length(); i++) {
+                s = s.replaceAll(StripAccents.characters.substring(i, i + 1),
+                        StripAccents.gsm.substring(i, i + 1));
+            }
+        }
+
+        return s;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
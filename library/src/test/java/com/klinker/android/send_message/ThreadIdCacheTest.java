@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThreadIdCacheTest {
+
+    private CountingCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new CountingCache();
+    }
+
+    @Test
+    public void secondLookupIsServedFromTheCache() {
+        assertEquals(-1, mCache.get(null/*context*/, recipients("+15555550100", "a@b.com")));
+        mCache.put(recipients("+15555550100", "a@b.com"), 7);
+
+        // the context is never needed, the provider isn't asked at all
+        assertEquals(7, mCache.get(null/*context*/, recipients("a@b.com", "+15555550100")));
+        assertEquals(7, mCache.get(null/*context*/, recipients("+15555550100", "a@b.com")));
+        assertEquals(0, mCache.checks);
+    }
+
+    @Test
+    public void keyIgnoresOrderAndFormatting() {
+        mCache.put(recipients("+1 (555) 555-0100", "Someone <Some.One@Example.com>"), 7);
+        assertEquals(7, mCache.get(recipients("some.one@example.com", "+15555550100")));
+    }
+
+    @Test
+    public void differentRecipientSetsAreKeptApart() {
+        mCache.put(recipients("+15555550100"), 7);
+        mCache.put(recipients("+15555550100", "+15555550101"), 8);
+        assertEquals(7, mCache.get(recipients("+15555550100")));
+        assertEquals(8, mCache.get(recipients("+15555550101", "+15555550100")));
+        assertEquals(-1, mCache.get(recipients("+15555550101")));
+    }
+
+    @Test
+    public void checksTheThreadOnceAfterAChange() {
+        mCache.put(recipients("+15555550100"), 7);
+        mCache.onConversationsChanged();
+        mCache.onConversationsChanged();
+
+        assertEquals(7, mCache.get(null/*context*/, recipients("+15555550100")));
+        assertEquals(7, mCache.get(null/*context*/, recipients("+15555550100")));
+        assertEquals(1, mCache.checks);
+    }
+
+    @Test
+    public void forgetsDeletedThreads() {
+        mCache.put(recipients("+15555550100"), 7);
+        mCache.put(recipients("+15555550101"), 8);
+        mCache.onConversationsChanged();
+        mCache.exists = false;
+
+        assertEquals(-1, mCache.get(null/*context*/, recipients("+15555550100")));
+        assertEquals(-1, mCache.get(recipients("+15555550100")));
+        assertEquals(8, mCache.get(recipients("+15555550101")));
+    }
+
+    @Test
+    public void invalidatesEveryRecipientSetOfAThread() {
+        mCache.put(recipients("+15555550100"), 7);
+        mCache.put(recipients("+1 555 555 0100"), 7);
+        mCache.put(recipients("+15555550101"), 8);
+        mCache.invalidate(7);
+        assertEquals(-1, mCache.get(recipients("+15555550100")));
+        assertEquals(8, mCache.get(recipients("+15555550101")));
+    }
+
+    private static Set<String> recipients(String... recipients) {
+        return new HashSet<String>(Arrays.asList(recipients));
+    }
+
+    /**
+     * Answers the existence check without a provider and counts how often it is asked
+     */
+    private static class CountingCache extends ThreadIdCache {
+        boolean exists = true;
+        int checks;
+
+        @Override
+        boolean threadExists(Context context, long threadId) {
+            checks++;
+            return exists;
+        }
+    }
+}